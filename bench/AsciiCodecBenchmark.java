@@ -0,0 +1,130 @@
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Throughput of the block TYPE A streams against the byte-at-a-time
+ * filters they replaced. Run with {@code java -cp out AsciiCodecBenchmark [MB]}.
+ */
+public class AsciiCodecBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        byte text[] = makeText(megabytes * 1024 * 1024);
+        byte wire[] = encode(text);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            report("encode legacy", text.length, timeEncode(text, true));
+            report("encode block ", text.length, timeEncode(text, false));
+            report("decode legacy", wire.length, timeDecode(wire, true));
+            report("decode block ", wire.length, timeDecode(wire, false));
+        }
+    }
+
+    private static byte[] makeText(int size) {
+        Random random = new Random(42);
+        byte text[] = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int r = random.nextInt(64);
+            text[i] = (byte) ((r == 0) ? '\n' : 'a' + (r % 26));
+        }
+        return text;
+    }
+
+    private static byte[] encode(byte text[]) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = new AsciiOutputStream(wire);
+        out.write(text);
+        out.close();
+        return wire.toByteArray();
+    }
+
+    private static long timeEncode(byte text[], boolean legacy) throws IOException {
+        OutputStream sink = nullSink();
+        OutputStream out = legacy ? new LegacyAsciiOutputStream(sink) : new AsciiOutputStream(sink);
+        long start = System.nanoTime();
+        for (int off = 0; off < text.length; off += 1024)
+            out.write(text, off, Math.min(1024, text.length - off));
+        out.close();
+        return System.nanoTime() - start;
+    }
+
+    private static long timeDecode(byte wire[], boolean legacy) throws IOException {
+        InputStream source = new ByteArrayInputStream(wire);
+        InputStream in = legacy ? new LegacyAsciiInputStream(source) : new AsciiInputStream(source);
+        byte buf[] = new byte[1024];
+        long start = System.nanoTime();
+        while (in.read(buf, 0, buf.length) > 0)
+            ;
+        in.close();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long bytes, long nanos) {
+        System.out.printf("%s %8.1f MB/s%n", name, bytes / (nanos / 1e9) / (1024 * 1024));
+    }
+
+    /**
+     * Stands in for a socket stream: every call on it is a separate syscall.
+     */
+    private static OutputStream nullSink() throws IOException {
+        File devNull = new File("/dev/null");
+        if (devNull.exists())
+            return new FileOutputStream(devNull);
+        return new ByteArrayOutputStream();
+    }
+
+    private static class LegacyAsciiInputStream extends FilterInputStream {
+        LegacyAsciiInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int c;
+            if ((c = in.read()) == -1)
+                return c;
+            if (c == '\r') {
+                if ((c = in.read()) == -1)
+                    return c;
+            }
+            return c;
+        }
+
+        public int read(byte data[], int off, int len) throws IOException {
+            if (len <= 0)
+                return 0;
+
+            int c;
+            if ((c = read()) == -1)
+                return -1;
+            data[off] = (byte) c;
+
+            int i = 1;
+            for (; i < len; i++) {
+                if ((c = read()) == -1)
+                    break;
+                if (c == '\r') {
+                    if ((c = in.read()) == -1)
+                        break;
+                }
+                data[off + i] = (byte) c;
+            }
+            return i;
+        }
+    }
+
+    private static class LegacyAsciiOutputStream extends FilterOutputStream {
+        LegacyAsciiOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte data[], int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                byte b = data[off + i];
+                if (b == '\n')
+                    out.write('\r');
+                out.write(b);
+            }
+        }
+    }
+}
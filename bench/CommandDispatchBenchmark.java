@@ -0,0 +1,84 @@
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.StringTokenizer;
+
+/**
+ * Cost of dispatching one command line through the reflective
+ * {@code getMethod("handle_" + verb)} lookup that ServerPI used to do,
+ * against {@link ServerPI#COMMANDS}. Both invoke the same handler on a
+ * logged-in session whose replies are discarded.
+ * Run with {@code java -cp out CommandDispatchBenchmark [iterations]}.
+ */
+public class CommandDispatchBenchmark {
+    private static final String LINES[] = { "NOOP", "PWD", "TYPE I", "XYZZY foo" };
+    private static final Class<?> ARG_TYPES[] = { String.class, StringTokenizer.class };
+    private static final int ROUNDS = 5;
+
+    static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+        ServerPI pi = new ServerPI(null, new NullChannel());
+        pi.handle_user("USER bench", new StringTokenizer(" bench"));
+        pi.handle_pass("PASS bench", new StringTokenizer(" bench"));
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += reflective(pi, LINES[i & 3]);
+            report("reflective", iterations, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += table(pi, LINES[i & 3]);
+            report("table     ", iterations, System.nanoTime() - start);
+        }
+    }
+
+    private static int reflective(ServerPI pi, String line) {
+        StringTokenizer st = new StringTokenizer(line);
+        String command = st.nextToken().toLowerCase();
+        Object args[] = { line, st };
+        try {
+            Method handler = ServerPI.class.getMethod("handle_" + command, ARG_TYPES);
+            return (Integer) handler.invoke(pi, args);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static int table(ServerPI pi, String line) {
+        int start = CommandTable.verbStart(line);
+        int end = CommandTable.verbEnd(line, start);
+        CommandHandler handler = ServerPI.COMMANDS.get(line, start, end);
+        if (handler == null)
+            return -1;
+        StringTokenizer st = new StringTokenizer(line.substring(end));
+        try {
+            return handler.handle(pi, line, st);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void report(String name, int iterations, long nanos) {
+        System.out.printf("%s %8.1f ns/command%n", name, (double) nanos / iterations);
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
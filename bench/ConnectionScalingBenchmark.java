@@ -0,0 +1,77 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Opens many idle control connections against an in-process server and
+ * reports the threads and heap they cost, plus NOOP round-trip latency with
+ * all of them connected. Run with
+ * {@code java -cp out ConnectionScalingBenchmark <blocking|reactor> [connections]}.
+ */
+public class ConnectionScalingBenchmark {
+    private static final int PORT = 8899;
+
+    public static void main(String[] args) throws Exception {
+        String mode = (args.length > 0) ? args[0] : "reactor";
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+        System.setProperty("ftp.mode", mode);
+        System.setProperty("ftp.port", Integer.toString(PORT));
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        int baseThreads = Thread.activeCount();
+        long baseHeap = usedHeap();
+
+        List<Socket> sockets = new ArrayList<>();
+        List<BufferedReader> readers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("localhost", PORT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            reader.readLine();
+            sockets.add(socket);
+            readers.add(reader);
+        }
+        long connectNanos = System.nanoTime() - start;
+
+        Thread.sleep(500);
+        System.out.printf("mode=%s connections=%d connect=%.1f ms%n", mode, connections, connectNanos / 1e6);
+        System.out.printf("server threads: +%d%n", Thread.activeCount() - baseThreads);
+        System.out.printf("heap: +%.1f MB%n", (usedHeap() - baseHeap) / (1024.0 * 1024));
+
+        int samples = Math.min(connections, 1000);
+        long latencies[] = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            int index = i * (connections / samples);
+            Writer writer = new OutputStreamWriter(sockets.get(index).getOutputStream());
+            long t = System.nanoTime();
+            writer.write("NOOP\r\n");
+            writer.flush();
+            readers.get(index).readLine();
+            latencies[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("NOOP p50=%.1f us p99=%.1f us%n",
+                latencies[samples / 2] / 1e3, latencies[samples * 99 / 100] / 1e3);
+
+        for (Socket socket : sockets)
+            socket.close();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Suite of the server's hot paths, run through {@link Microbench}:
+ * transfers over loopback in both representations and from the in-memory
+ * file system, the TYPE A codec, SIZE in TYPE A, path resolution, command
+ * dispatch, reply encoding and LIST formatting.
+ * Run with {@code java -cp out HotPathBenchmarks [regex]}; compare against
+ * the checked-in numbers with {@code -Dbench.baseline=bench/baseline.txt}.
+ * The jmh module runs the same bodies under JMH: {@code mvn -B package},
+ * then {@code java -jar jmh/target/benchmarks.jar -prof gc}.
+ */
+public class HotPathBenchmarks {
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Receives the benchmarks {@link #define} sets up; the Microbench runner
+     * here and the JMH module both run the same bodies.
+     */
+    interface Suite {
+        void add(String name, long bytesPerOp, Microbench.Body body) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Microbench bench = new Microbench(args.length > 0 ? args[0] : "");
+        define(bench::run);
+        System.exit(bench.finish() ? 1 : 0);
+    }
+
+    static void define(Suite bench) throws Exception {
+        // serve the temporary directory, where the benchmark files go
+        System.setProperty("ftp.root", System.getProperty("java.io.tmpdir"));
+
+        byte binary[] = new byte[PAYLOAD_SIZE];
+        new Random(42).nextBytes(binary);
+        byte text[] = makeText(PAYLOAD_SIZE);
+        byte wire[] = encode(text);
+
+        File textFile = File.createTempFile("bench", ".txt");
+        textFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(textFile)) {
+            byte big[] = makeText(FILE_SIZE);
+            out.write(big);
+        }
+        File binaryFile = File.createTempFile("bench", ".bin");
+        binaryFile.deleteOnExit();
+        Files.write(binaryFile.toPath(), binary);
+        VirtualPath textPath = VirtualPath.ROOT.resolve(textFile.getName());
+
+        MemoryFileSystem memory = new MemoryFileSystem();
+        VirtualPath memoryPath = VirtualPath.ROOT.resolve("bench.bin");
+        try (FileChannel channel = memory.open(memoryPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            channel.write(ByteBuffer.wrap(binary));
+        }
+
+        InetSocketAddress sink = startSink();
+        InetSocketAddress textSource = startSource(wire);
+        InetSocketAddress binarySource = startSource(binary);
+
+        bench.add("stream.send.A", PAYLOAD_SIZE, ops -> {
+            for (int i = 0; i < ops; i++)
+                send(sink, text, Representation.ASCII);
+            return ops;
+        });
+        bench.add("stream.send.I", PAYLOAD_SIZE, ops -> {
+            for (int i = 0; i < ops; i++)
+                send(sink, binary, Representation.IMAGE);
+            return ops;
+        });
+        bench.add("stream.receive.A", PAYLOAD_SIZE, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += receive(textSource, Representation.ASCII);
+            return n;
+        });
+        bench.add("stream.receive.I", PAYLOAD_SIZE, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += receive(binarySource, Representation.IMAGE);
+            return n;
+        });
+        bench.add("channel.send.I", PAYLOAD_SIZE, ops -> {
+            ChannelTransmission transmission = new ChannelTransmission();
+            FileHandleCache.Handle handle = FileHandleCache.INSTANCE.acquire(binaryFile);
+            // one connection for all, as a connection per megabyte would run out of ports
+            try (SocketChannel channel = SocketChannel.open(sink)) {
+                for (int i = 0; i < ops; i++)
+                    transmission.sendFile(handle, 0, channel, shaper(channel));
+            } finally {
+                handle.release();
+            }
+            return ops;
+        });
+        bench.add("memory.send.I", PAYLOAD_SIZE, ops -> {
+            ChannelTransmission transmission = new ChannelTransmission();
+            try (FileChannel file = memory.open(memoryPath, StandardOpenOption.READ);
+                 SocketChannel channel = SocketChannel.open(sink)) {
+                for (int i = 0; i < ops; i++)
+                    transmission.sendFile(file, 0, channel, shaper(channel));
+            }
+            return ops;
+        });
+
+        byte buf[] = new byte[64 * 1024];
+        bench.add("ascii.encode", PAYLOAD_SIZE, ops -> {
+            OutputStream out = new AsciiOutputStream(NullOutputStream.INSTANCE);
+            for (int i = 0; i < ops; i++)
+                out.write(text, 0, text.length);
+            out.flush();
+            return ops;
+        });
+        bench.add("ascii.decode", wire.length, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++) {
+                InputStream in = new AsciiInputStream(new ByteArrayInputStream(wire));
+                int count;
+                while ((count = in.read(buf, 0, buf.length)) > 0)
+                    n += count;
+            }
+            return n;
+        });
+        bench.add("ascii.sizeOf.cached", 0, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += Representation.ASCII.sizeOf(textPath);
+            return n;
+        });
+        bench.add("ascii.sizeOf.scan", FILE_SIZE, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += AsciiSizeCache.count(textPath, textFile.length());
+            return n;
+        });
+
+        ServerPI pi = new ServerPI(null, NullChannel.INSTANCE);
+        pi.handle_user("USER bench", new StringTokenizer(" bench"));
+        pi.handle_pass("PASS bench", new StringTokenizer(" bench"));
+        // normalizing an argument against the current directory, walking the interned paths
+        bench.add("path.resolve", 0, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += VirtualPath.ROOT.resolve("pub/./releases/../archive/2024/ftp-server.tar.gz").toString().length();
+            return n;
+        });
+        // an argument the session has resolved before
+        bench.add("path.resolve.cached", 0, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += pi.resolve("pub/./releases/../archive/2024/ftp-server.tar.gz").toString().length();
+            return n;
+        });
+
+        String lines[] = { "NOOP", "PWD", "TYPE I", "TYPE A" };
+        bench.add("dispatch.table", 0, ops -> {
+            long n = 0;
+            for (int i = 0; i < ops; i++)
+                n += dispatch(pi, lines[i & 3]);
+            return n;
+        });
+
+        ReplyWriter.Fixed fixed = new ReplyWriter.Fixed(226, "Transfer complete.");
+        bench.add("reply.fixed", 0, ops -> {
+            ReplyWriter writer = new ReplyWriter(NullChannel.INSTANCE);
+            for (int i = 0; i < ops; i++) {
+                writer.write(fixed);
+                writer.flush();
+            }
+            return ops;
+        });
+        bench.add("reply.text", 0, ops -> {
+            ReplyWriter writer = new ReplyWriter(NullChannel.INSTANCE);
+            for (int i = 0; i < ops; i++) {
+                writer.write(331, "Password required for ", "anonymous", ".");
+                writer.flush();
+            }
+            return ops;
+        });
+
+        BasicFileAttributes attrs = Files.readAttributes(textFile.toPath(), BasicFileAttributes.class);
+        bench.add("listing.format", 0, ops -> {
+            ListingWriter writer = new ListingWriter(NullChannel.INSTANCE, 0);
+            for (int i = 0; i < ops; i++)
+                writer.writeEntry("ftp-server-1.0.tar.gz", attrs);
+            writer.flush();
+            return ops;
+        });
+    }
+
+    private static BandwidthLimiter.Shaper shaper(SocketChannel channel) {
+        return BandwidthLimiter.INSTANCE.shaper(new TokenBucket(0), null, channel, new LongAdder());
+    }
+
+    private static void send(InetSocketAddress sink, byte payload[], Representation representation)
+            throws IOException {
+        try (SocketChannel channel = SocketChannel.open(sink)) {
+            new StreamTransmission().sendFile(new ByteArrayInputStream(payload), channel.socket(), representation,
+                    shaper(channel));
+        }
+    }
+
+    private static long receive(InetSocketAddress source, Representation representation) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (SocketChannel channel = SocketChannel.open(source)) {
+            new StreamTransmission().receiveFile(channel.socket(), out, representation, shaper(channel));
+        }
+        return out.count;
+    }
+
+    private static int dispatch(ServerPI pi, String line) throws CommandException {
+        int start = CommandTable.verbStart(line);
+        int end = CommandTable.verbEnd(line, start);
+        CommandHandler handler = ServerPI.COMMANDS.get(line, start, end);
+        return handler.handle(pi, line, new StringTokenizer(line.substring(end)));
+    }
+
+    /**
+     * Accepts loopback connections and reads each one to its end.
+     */
+    private static InetSocketAddress startSink() throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(() -> {
+            byte buf[] = new byte[256 * 1024];
+            while (true) {
+                try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                    while (in.read(buf) > 0)
+                        ;
+                }
+            }
+        });
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    /**
+     * Accepts loopback connections and writes {@code payload} to each.
+     */
+    private static InetSocketAddress startSource(byte payload[]) throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        daemon(() -> {
+            while (true) {
+                try (Socket socket = server.accept(); OutputStream out = socket.getOutputStream()) {
+                    out.write(payload);
+                }
+            }
+        });
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+
+    private static void daemon(IORunnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static byte[] makeText(int size) {
+        Random random = new Random(42);
+        byte text[] = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int r = random.nextInt(64);
+            text[i] = (byte) ((r == 0) ? '\n' : 'a' + (r % 26));
+        }
+        return text;
+    }
+
+    private static byte[] encode(byte text[]) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = new AsciiOutputStream(wire);
+        out.write(text);
+        out.close();
+        return wire.toByteArray();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        public void write(int b) {
+        }
+
+        public void write(byte b[], int off, int len) {
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte b[], int off, int len) {
+            count += len;
+        }
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        static final NullChannel INSTANCE = new NullChannel();
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
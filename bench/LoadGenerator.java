@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test against a running server. Each of N client threads
+ * holds one control session and loops over a weighted mix of LIST, RETR
+ * and STOR (each STOR followed by a DELE) in active mode, or passive mode
+ * with -Dload.pasv=true, until the time is up. Reports command throughput,
+ * data throughput, p50/p99 latency per command and every failure by reply
+ * code.
+ *
+ * <p>Run with {@code java -cp out LoadGenerator [host] [port] [sessions]
+ * [seconds]}; -Dload.mix=list:2,retr:5,stor:1 sets the weights and
+ * -Dload.fileSize the size of the file retrieved and stored. The files live
+ * in a loadtest directory under the server root.
+ */
+public class LoadGenerator {
+    private static final String COMMANDS[] = { "LOGIN", "LIST", "RETR", "STOR" };
+    private static final int LOGIN = 0, LIST = 1, RETR = 2, STOR = 3;
+
+    private static final boolean PASSIVE = Boolean.getBoolean("load.pasv");
+    private static final int FILE_SIZE = Integer.getInteger("load.fileSize", 1024 * 1024);
+    private static final int TIMEOUT = Integer.getInteger("load.timeout", 30000);
+    private static final String DIRECTORY = "loadtest";
+    private static final String SEED = "seed.bin";
+
+    private final String host;
+    private final int port;
+    private final int weights[] = new int[COMMANDS.length];
+    private final Histogram latencies[] = new Histogram[COMMANDS.length];
+    private final LongAdder bytes = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final byte payload[] = new byte[FILE_SIZE];
+
+    private volatile boolean isRunning = true;
+
+    LoadGenerator(String host, int port, String mix) {
+        this.host = host;
+        this.port = port;
+        for (int i = 0; i < COMMANDS.length; i++)
+            latencies[i] = new Histogram();
+        for (String entry : mix.split(",")) {
+            String fields[] = entry.split(":");
+            for (int i = 0; i < COMMANDS.length; i++) {
+                if (COMMANDS[i].equalsIgnoreCase(fields[0]))
+                    weights[i] = Integer.parseInt(fields[1]);
+            }
+        }
+        new Random(42).nextBytes(payload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = (args.length > 0) ? args[0] : "127.0.0.1";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 8888;
+        int sessions = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+        int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 30;
+
+        LoadGenerator load = new LoadGenerator(host, port, System.getProperty("load.mix", "list:2,retr:5,stor:1"));
+        load.setUp();
+        load.run(sessions, seconds);
+    }
+
+    /**
+     * Creates the test directory and the file every session retrieves.
+     */
+    private void setUp() throws IOException {
+        Session session = new Session();
+        try {
+            session.login();
+            session.command("MKD " + DIRECTORY);
+            session.command("CWD " + DIRECTORY);
+            session.command("DELE " + SEED);
+            session.transfer("STOR " + SEED, true);
+        } finally {
+            session.close();
+        }
+    }
+
+    private void run(int sessions, int seconds) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            int id = i + 1;
+            Thread thread = new Thread(() -> {
+                try {
+                    runSession(id);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        isRunning = false;
+        done.await();
+        report((System.nanoTime() - start) / 1e9, sessions);
+    }
+
+    private void runSession(int id) {
+        Random random = new Random(id);
+        int total = 0;
+        for (int weight : weights)
+            total += weight;
+
+        Session session = null;
+        try {
+            long start = System.nanoTime();
+            session = new Session();
+            session.login();
+            session.command("CWD " + DIRECTORY);
+            latencies[LOGIN].record(System.nanoTime() - start);
+
+            for (int n = 0; isRunning && total > 0; n++) {
+                int pick = random.nextInt(total);
+                int command = LIST;
+                while (pick >= weights[command]) {
+                    pick -= weights[command];
+                    command++;
+                }
+
+                start = System.nanoTime();
+                if (command == LIST) {
+                    session.transfer("LIST", false);
+                } else if (command == RETR) {
+                    session.transfer("RETR " + SEED, false);
+                } else {
+                    String name = "up-" + id + "-" + n + ".bin";
+                    session.transfer("STOR " + name, true);
+                    session.command("DELE " + name);
+                }
+                latencies[command].record(System.nanoTime() - start);
+            }
+            session.command("QUIT");
+        } catch (FailedCommand e) {
+            fail(e.getMessage());
+        } catch (IOException e) {
+            fail(e.getClass().getSimpleName());
+        } finally {
+            if (session != null)
+                session.close();
+        }
+    }
+
+    private void fail(String reason) {
+        failures.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    private void report(double seconds, int sessions) {
+        long commands = 0;
+        System.out.printf("%d sessions, %.1f s, %s mode%n", sessions, seconds, PASSIVE ? "passive" : "active");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            Histogram latency = latencies[i];
+            long count = latency.getCount();
+            if (count == 0)
+                continue;
+            commands += count;
+            System.out.printf("%-6s %8d  %8.1f/s  p50 %8.2f ms  p99 %8.2f ms%n", COMMANDS[i], count,
+                    count / seconds, latency.quantile(0.5) / 1e6, latency.quantile(0.99) / 1e6);
+        }
+        System.out.printf("total  %8d  %8.1f/s  data %.1f MB/s%n", commands, commands / seconds,
+                bytes.sum() / seconds / 1e6);
+
+        Map<String, Long> sorted = new TreeMap<>();
+        failures.forEach((reason, count) -> sorted.put(reason, count.sum()));
+        if (sorted.isEmpty())
+            System.out.println("no failures");
+        sorted.forEach((reason, count) -> System.out.printf("failed %-24s %8d%n", reason, count));
+    }
+
+    /**
+     * A reply that ended a session, named by the command and its code.
+     */
+    private static class FailedCommand extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FailedCommand(String command, int code) {
+            super(command.split(" ")[0] + " " + code);
+        }
+    }
+
+    private class Session {
+        private final Socket control;
+        private final BufferedReader in;
+        private final Writer out;
+        private final byte buf[] = new byte[64 * 1024];
+        private int passivePort;
+
+        Session() throws IOException {
+            control = new Socket();
+            control.connect(new InetSocketAddress(host, port), TIMEOUT);
+            control.setSoTimeout(TIMEOUT);
+            in = new BufferedReader(new InputStreamReader(control.getInputStream()));
+            out = new OutputStreamWriter(control.getOutputStream());
+            expect("connect", readReply(), 2);
+        }
+
+        void login() throws IOException {
+            expect("USER", command("USER load"), 3);
+            expect("PASS", command("PASS load"), 2);
+            expect("TYPE", command("TYPE I"), 2);
+        }
+
+        int command(String line) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+            return readReply();
+        }
+
+        /**
+         * Runs a transfer command, sending the payload if {@code upload}
+         * and draining the data otherwise.
+         */
+        void transfer(String line, boolean upload) throws IOException {
+            Socket data;
+            if (PASSIVE) {
+                expect("PASV", command("PASV"), 2);
+                data = new Socket();
+                data.connect(new InetSocketAddress(host, passivePort), TIMEOUT);
+                expect(line, command(line), 1);
+            } else {
+                ServerSocket listener = new ServerSocket(0, 1, control.getLocalAddress());
+                try {
+                    listener.setSoTimeout(TIMEOUT);
+                    InetAddress address = control.getLocalAddress();
+                    int p = listener.getLocalPort();
+                    expect("PORT", command("PORT " + address.getHostAddress().replace('.', ',') + ","
+                            + (p >> 8) + "," + (p & 0xff)), 2);
+                    expect(line, command(line), 1);
+                    data = listener.accept();
+                } finally {
+                    listener.close();
+                }
+            }
+
+            try {
+                data.setSoTimeout(TIMEOUT);
+                if (upload) {
+                    data.getOutputStream().write(payload);
+                    bytes.add(payload.length);
+                } else {
+                    InputStream dataIn = data.getInputStream();
+                    int n;
+                    while ((n = dataIn.read(buf)) > 0)
+                        bytes.add(n);
+                }
+            } finally {
+                data.close();
+            }
+            expect(line, readReply(), 2);
+        }
+
+        private int readReply() throws IOException {
+            String line = in.readLine();
+            if (line == null)
+                throw new EOFException();
+            if (line.length() > 3 && line.charAt(3) == '-') {
+                String end = line.substring(0, 3) + " ";
+                while (!line.startsWith(end)) {
+                    line = in.readLine();
+                    if (line == null)
+                        throw new EOFException();
+                }
+            }
+            int code = Integer.parseInt(line.substring(0, 3));
+            if (code == 227) {
+                String fields[] = line.substring(line.indexOf('(') + 1, line.indexOf(')')).split(",");
+                passivePort = Integer.parseInt(fields[4]) * 256 + Integer.parseInt(fields[5]);
+            }
+            return code;
+        }
+
+        private void expect(String command, int code, int kind) throws FailedCommand {
+            if (code / 100 != kind)
+                throw new FailedCommand(command, code);
+        }
+
+        void close() {
+            try {
+                control.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal benchmark runner in the spirit of JMH, kept so the benchmarks run
+ * from a plain javac build without any dependency; the jmh module runs the
+ * same bodies under JMH itself. Each benchmark runs timed warmup iterations, then
+ * measured ones; the runner reports the mean time per operation with its
+ * spread, throughput for byte-sized operations, bytes allocated per
+ * operation and the collections that ran while measuring.
+ *
+ * <p>Results can be saved with -Dbench.save=file and compared with a saved
+ * baseline with -Dbench.baseline=file; a benchmark more than
+ * -Dbench.tolerance percent (default 10) slower than its baseline is
+ * flagged as a regression.
+ */
+class Microbench {
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.time", 1000) * 1000000L;
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("bench.tolerance", "10"));
+
+    /**
+     * A benchmark body running {@code ops} operations. What it returns is
+     * kept so the work cannot be optimized away.
+     */
+    interface Body {
+        long run(int ops) throws Exception;
+    }
+
+    static long sink;
+
+    private final Pattern filter;
+    private final Map<String, Double> results = new LinkedHashMap<>();
+    private final Map<String, Double> baseline;
+    private final List<String> regressions = new ArrayList<>();
+
+    Microbench(String filter) throws IOException {
+        this.filter = Pattern.compile(filter);
+        this.baseline = load(System.getProperty("bench.baseline"));
+    }
+
+    /**
+     * Runs one benchmark; {@code bytesPerOp} is the payload of one operation,
+     * or 0 if throughput in bytes makes no sense for it.
+     */
+    void run(String name, long bytesPerOp, Body body) throws Exception {
+        if (!filter.matcher(name).find())
+            return;
+
+        int ops = calibrate(body);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            sink += body.run(ops);
+
+        double scores[] = new double[ITERATIONS];
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long alloc = allocatedBytes();
+            long start = System.nanoTime();
+            sink += body.run(ops);
+            scores[i] = (double) (System.nanoTime() - start) / ops;
+            allocated += allocatedBytes() - alloc;
+        }
+
+        double mean = 0;
+        for (double score : scores)
+            mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores)
+            variance += (score - mean) * (score - mean);
+        double error = Math.sqrt(variance / Math.max(1, scores.length - 1));
+
+        StringBuilder line = new StringBuilder(String.format("%-24s %12.1f +- %8.1f ns/op", name, mean, error));
+        if (bytesPerOp > 0)
+            line.append(String.format(" %9.1f MB/s", bytesPerOp * 1e3 / mean));
+        if (allocatedBytes() >= 0)
+            line.append(String.format(" %10.1f B/op", (double) allocated / ((long) ops * ITERATIONS)));
+        line.append(String.format(" gc %d/%dms", gcCount() - gcCount, gcTime() - gcTime));
+
+        Double previous = baseline.get(name);
+        if (previous != null) {
+            double change = (mean - previous) * 100 / previous;
+            line.append(String.format(" %+6.1f%%", change));
+            if (change > TOLERANCE) {
+                line.append(" REGRESSION");
+                regressions.add(name);
+            }
+        }
+        System.out.println(line);
+        results.put(name, mean);
+    }
+
+    /**
+     * Saves the results if asked to and returns whether any benchmark
+     * regressed against the baseline.
+     */
+    boolean finish() throws IOException {
+        String path = System.getProperty("bench.save");
+        if (path != null) {
+            PrintWriter out = new PrintWriter(new FileWriter(path));
+            try {
+                out.println("# benchmark ns/op");
+                for (Map.Entry<String, Double> result : results.entrySet())
+                    out.printf("%s %.1f%n", result.getKey(), result.getValue());
+            } finally {
+                out.close();
+            }
+        }
+        if (!regressions.isEmpty())
+            System.out.println("Regressions: " + regressions);
+        return !regressions.isEmpty();
+    }
+
+    /**
+     * Returns how many operations take about one iteration's time, so
+     * short bodies are not dominated by the timer.
+     */
+    private static int calibrate(Body body) throws Exception {
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sink += body.run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ITERATION_NANOS / 10 || ops >= (1 << 30))
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) ops * ITERATION_NANOS / Math.max(elapsed, 1)));
+            ops *= 2;
+        }
+    }
+
+    private static Map<String, Double> load(String path) throws IOException {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        if (path == null)
+            return baseline;
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String fields[] = line.split("\\s+");
+                baseline.put(fields[0], Double.parseDouble(fields[1]));
+            }
+        } finally {
+            in.close();
+        }
+        return baseline;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+}
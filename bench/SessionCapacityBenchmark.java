@@ -0,0 +1,100 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs in many concurrent blocking-mode sessions against an in-process
+ * server and keeps them busy with NOOPs, reporting platform threads, heap
+ * and command throughput. Run once per thread model:
+ * {@code java -cp out SessionCapacityBenchmark <platform|virtual> [sessions] [rounds]}.
+ */
+public class SessionCapacityBenchmark {
+    private static final int PORT = 8898;
+    private static final int CLIENT_THREADS = 16;
+
+    private static class Session {
+        final Socket socket;
+        final BufferedReader reader;
+        final Writer writer;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new OutputStreamWriter(socket.getOutputStream());
+        }
+
+        String command(String line) throws IOException {
+            writer.write(line + "\r\n");
+            writer.flush();
+            return reader.readLine();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String threads = (args.length > 0) ? args[0] : "platform";
+        int sessionCount = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+        System.setProperty("ftp.threads", threads);
+        System.setProperty("ftp.mode", "blocking");
+        System.setProperty("ftp.port", Integer.toString(PORT));
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[0]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            Session session = new Session(new Socket("localhost", PORT));
+            session.reader.readLine();
+            session.command("USER bench");
+            session.command("PASS bench");
+            sessions.add(session);
+        }
+
+        System.out.printf("threads=%s sessions=%d%n", threads, sessionCount);
+        System.out.printf("platform threads: +%d%n", ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.out.printf("heap used: %.1f MB%n", (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024));
+
+        AtomicLong commands = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            int first = t;
+            clients.execute(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = first; i < sessions.size(); i += CLIENT_THREADS) {
+                            sessions.get(i).command("NOOP");
+                            commands.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("NOOP throughput: %.0f commands/s%n", commands.get() / seconds);
+
+        for (Session session : sessions)
+            session.socket.close();
+    }
+}
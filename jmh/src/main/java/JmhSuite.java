@@ -0,0 +1,15 @@
+import java.util.Map;
+
+import ftpserver.jmh.Workload;
+import ftpserver.jmh.Workloads;
+
+/**
+ * Hands the bodies {@link HotPathBenchmarks#define} sets up to the JMH
+ * benchmark, which cannot reach into the default package itself.
+ */
+public class JmhSuite implements Workloads.Registrar {
+    @Override
+    public void register(Map<String, Workload> workloads) throws Exception {
+        HotPathBenchmarks.define((name, bytesPerOp, body) -> workloads.put(name, body::run));
+    }
+}
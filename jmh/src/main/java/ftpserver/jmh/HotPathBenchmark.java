@@ -0,0 +1,48 @@
+package ftpserver.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-command benchmarks of bench/HotPathBenchmarks under JMH, run in
+ * batches so the cost of setting up a body does not swamp operations of a
+ * few hundred nanoseconds; see {@link TransferBenchmark} for the rest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({ "ascii.sizeOf.cached", "path.resolve", "path.resolve.cached", "dispatch.table",
+             "reply.fixed", "reply.text", "listing.format" })
+    public String name;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Workloads.get(name);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long run() throws Exception {
+        return workload.run(BATCH);
+    }
+}
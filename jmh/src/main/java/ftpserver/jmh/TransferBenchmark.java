@@ -0,0 +1,45 @@
+package ftpserver.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The payload-sized benchmarks of bench/HotPathBenchmarks under JMH, a
+ * transfer or a pass over a file per invocation, with the same warmup and
+ * measurement as the Microbench runner. Select benchmarks with
+ * {@code -p name=...} and add {@code -prof gc} for allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({ "stream.send.A", "stream.send.I", "stream.receive.A", "stream.receive.I",
+             "channel.send.I", "memory.send.I", "ascii.encode", "ascii.decode", "ascii.sizeOf.scan" })
+    public String name;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() throws Exception {
+        workload = Workloads.get(name);
+    }
+
+    @Benchmark
+    public long run() throws Exception {
+        return workload.run(1);
+    }
+}
@@ -0,0 +1,10 @@
+package ftpserver.jmh;
+
+/**
+ * One benchmark body from bench/HotPathBenchmarks, running {@code ops}
+ * operations and returning a value that keeps the work from being
+ * optimized away.
+ */
+public interface Workload {
+    long run(int ops) throws Exception;
+}
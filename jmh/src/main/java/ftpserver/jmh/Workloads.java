@@ -0,0 +1,37 @@
+package ftpserver.jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hot-path benchmark bodies by name. The server and bench/ classes are
+ * in the default package, which a JMH benchmark cannot be in nor import
+ * from, so the bodies are handed over by {@code JmhSuite}, looked up by
+ * name and set up once per forked JVM.
+ */
+public final class Workloads {
+    private static final String REGISTRAR = "JmhSuite";
+
+    /** Fills in the workloads; implemented in the default package. */
+    public interface Registrar {
+        void register(Map<String, Workload> workloads) throws Exception;
+    }
+
+    private static Map<String, Workload> workloads;
+
+    private Workloads() {
+    }
+
+    static synchronized Workload get(String name) throws Exception {
+        if (workloads == null) {
+            Map<String, Workload> all = new HashMap<>();
+            Class<?> registrar = Class.forName(REGISTRAR);
+            ((Registrar) registrar.getDeclaredConstructor().newInstance()).register(all);
+            workloads = all;
+        }
+        Workload workload = workloads.get(name);
+        if (workload == null)
+            throw new IllegalArgumentException("No such benchmark: " + name);
+        return workload;
+    }
+}
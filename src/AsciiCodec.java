@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Word-at-a-time scanning helpers for the TYPE A codec. Eight bytes are
+ * tested per step with the usual SWAR zero-byte trick, so the streams can
+ * find line ends without looking at every byte individually.
+ */
+final class AsciiCodec {
+    static final byte CR = '\r';
+    static final byte LF = '\n';
+    // the block the streams buffer and transfers move TYPE A data in
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private AsciiCodec() {
+    }
+
+    /**
+     * Returns a little-endian view of {@code a} for {@link #indexOf}; a
+     * stream keeps one per buffer so scanning allocates nothing.
+     */
+    static ByteBuffer view(byte[] a) {
+        return ByteBuffer.wrap(a).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the absolute index of the first {@code b} in
+     * {@code words[from, to)}, or -1. {@code words} must be little-endian.
+     */
+    static int indexOf(ByteBuffer words, int from, int to, byte b) {
+        long pattern = ONES * (b & 0xff);
+        int i = from;
+
+        for (; i + 8 <= to; i += 8) {
+            long x = words.getLong(i) ^ pattern;
+            long found = (x - ONES) & ~x & HIGHS;
+            if (found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for (; i < to; i++) {
+            if (words.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of bytes {@code buf[from, to)} occupies on the wire
+     * in TYPE A, where every LF not already preceded by CR gains a CR.
+     * {@code prevCr} tells whether the byte before {@code from} was a CR.
+     */
+    static long encodedLength(ByteBuffer buf, int from, int to, boolean prevCr) {
+        ByteBuffer words = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long length = to - from;
+        int i = from;
+        int lf;
+        while ((lf = indexOf(words, i, to, LF)) >= 0) {
+            boolean crBefore = (lf > from) ? words.get(lf - 1) == CR : prevCr;
+            if (!crBefore)
+                length++;
+            i = lf + 1;
+        }
+        return length;
+    }
+}
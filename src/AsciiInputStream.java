@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Translates TYPE A input to the local convention: CRLF becomes LF, a CR
+ * not followed by LF is kept. Raw bytes are read in blocks and copied to
+ * the caller in runs between CRs.
+ */
+class AsciiInputStream extends FilterInputStream {
+    private static final int BUF_SIZE = AsciiCodec.BLOCK_SIZE;
+
+    private final byte buf[] = new byte[BUF_SIZE];
+    private final ByteBuffer words = AsciiCodec.view(buf);
+    private final byte single[] = new byte[1];
+    private int pos = 0;
+    private int limit = 0;
+
+    AsciiInputStream(InputStream in) {
+        super(in);
+    }
+
+    public int read() throws IOException {
+        int n;
+        while ((n = read(single, 0, 1)) == 0)
+            ;
+        return (n < 0) ? -1 : (single[0] & 0xff);
+    }
+
+    public int read(byte data[], int off, int len) throws IOException {
+        if (len <= 0)
+            return 0;
+
+        int n = 0;
+        while (n < len) {
+            if (pos == limit) {
+                if (n > 0 && in.available() <= 0)
+                    break;
+                pos = limit = 0;
+                if (!fill())
+                    break;
+            }
+
+            int cr = AsciiCodec.indexOf(words, pos, limit, AsciiCodec.CR);
+            int end = (cr < 0) ? limit : cr;
+            int run = Math.min(end - pos, len - n);
+            System.arraycopy(buf, pos, data, off + n, run);
+            pos += run;
+            n += run;
+
+            if (pos != cr || n == len)
+                continue;
+
+            if (pos + 1 == limit) {
+                // the CR's partner (if any) is still on the wire
+                if (n > 0 && in.available() <= 0)
+                    break;
+                buf[0] = AsciiCodec.CR;
+                pos = 0;
+                limit = 1;
+                if (!fill()) {
+                    data[off + n++] = AsciiCodec.CR;
+                    pos = limit = 0;
+                }
+            } else if (buf[pos + 1] == AsciiCodec.LF) {
+                pos++;
+            } else {
+                data[off + n++] = AsciiCodec.CR;
+                pos++;
+            }
+        }
+
+        return (n == 0) ? -1 : n;
+    }
+
+    public long skip(long n) throws IOException {
+        byte skipBuf[] = new byte[(int) Math.min(n, BUF_SIZE)];
+        long skipped = 0;
+        int nread;
+        while (skipped < n && (nread = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length))) > 0)
+            skipped += nread;
+        return skipped;
+    }
+
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean fill() throws IOException {
+        int nread;
+        while ((nread = in.read(buf, limit, buf.length - limit)) == 0)
+            ;
+        if (nread < 0)
+            return false;
+        limit += nread;
+        return true;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Translates local text to TYPE A output: an LF not already preceded by CR
+ * is sent as CRLF. Runs between LFs are copied into a block buffer that is
+ * written to the underlying stream in large chunks.
+ */
+class AsciiOutputStream extends FilterOutputStream {
+    private static final int BUF_SIZE = AsciiCodec.BLOCK_SIZE;
+
+    private final byte buf[] = new byte[BUF_SIZE];
+    private int count = 0;
+    private boolean lastCr;
+    // a view of the array last written, which callers normally reuse
+    private ByteBuffer words;
+
+    AsciiOutputStream(OutputStream out) {
+        this(out, false);
+    }
+
+    /**
+     * Creates a stream that continues after a CR if {@code afterCr}, so an
+     * LF written first is taken as the end of that CRLF.
+     */
+    AsciiOutputStream(OutputStream out, boolean afterCr) {
+        super(out);
+        lastCr = afterCr;
+    }
+
+    public void write(int b) throws IOException {
+        if (count + 2 > buf.length)
+            flushBuffer();
+        if ((byte) b == AsciiCodec.LF && !lastCr)
+            buf[count++] = AsciiCodec.CR;
+        buf[count++] = (byte) b;
+        lastCr = (byte) b == AsciiCodec.CR;
+    }
+
+    public void write(byte data[], int off, int len) throws IOException {
+        if (words == null || words.array() != data)
+            words = AsciiCodec.view(data);
+        int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            int lf = AsciiCodec.indexOf(words, pos, end, AsciiCodec.LF);
+            int runEnd = (lf < 0) ? end : lf;
+            if (runEnd > pos) {
+                append(data, pos, runEnd - pos);
+                lastCr = data[runEnd - 1] == AsciiCodec.CR;
+            }
+            if (lf < 0)
+                break;
+
+            if (count + 2 > buf.length)
+                flushBuffer();
+            if (!lastCr)
+                buf[count++] = AsciiCodec.CR;
+            buf[count++] = AsciiCodec.LF;
+            lastCr = false;
+            pos = lf + 1;
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void append(byte data[], int off, int len) throws IOException {
+        if (len >= buf.length) {
+            flushBuffer();
+            out.write(data, off, len);
+            return;
+        }
+        if (count + len > buf.length)
+            flushBuffer();
+        System.arraycopy(data, off, buf, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}
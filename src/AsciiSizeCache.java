@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Bounded LRU index of TYPE A sizes, keyed by path and validated against the
+ * file's modification time and length. Misses are computed by counting bare
+ * LFs over mapped chunks in parallel. Each entry also keeps the wire
+ * offset of every chunk start, a checkpoint index that lets a restarted
+ * transfer find its file position by scanning at most one chunk. The index
+ * is loaded on first use and written back when the server shuts down, to
+ * -Dftp.asciiSize.index (ascii-sizes.idx in the {@link StateDirectory}).
+ * Loading keeps only the entries whose file on disk still has the recorded
+ * modification time and length, and whose checkpoints are possible for it.
+ */
+class AsciiSizeCache {
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int FORMAT = 0x41535a32;
+
+    static final AsciiSizeCache INSTANCE = new AsciiSizeCache(
+            Integer.getInteger("ftp.asciiSize.entries", 10000),
+            new File(System.getProperty("ftp.asciiSize.index",
+                    StateDirectory.INSTANCE.file("ascii-sizes.idx").getPath())));
+
+    private static class SizeEntry {
+        final long lastModified;
+        final long length;
+        // checkpoints[i] is the wire offset of file position i * CHUNK_SIZE;
+        // the last element is the TYPE A size of the whole file
+        final long checkpoints[];
+
+        SizeEntry(long lastModified, long length, long checkpoints[]) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checkpoints = checkpoints;
+        }
+
+        long asciiSize() {
+            return checkpoints[checkpoints.length - 1];
+        }
+    }
+
+    private final int capacity;
+    private final File indexFile;
+    private final LinkedHashMap<String, SizeEntry> entries;
+    private boolean loaded = false;
+
+    AsciiSizeCache(int capacity, File indexFile) {
+        this.capacity = capacity;
+        this.indexFile = indexFile;
+        this.entries = new LinkedHashMap<String, SizeEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SizeEntry> eldest) {
+                return size() > AsciiSizeCache.this.capacity;
+            }
+        };
+    }
+
+    long sizeOf(VirtualPath path) throws IOException {
+        return entry(path).asciiSize();
+    }
+
+    /**
+     * Returns the position in {@code path} at which a TYPE A transfer
+     * restarted at wire offset {@code offset} resumes, or -1 if the offset
+     * lies past the end or between the CR and LF of a translated line end.
+     */
+    long filePosition(VirtualPath path, long offset) throws IOException {
+        SizeEntry entry = entry(path);
+        long checkpoints[] = entry.checkpoints;
+        if (offset < 0 || offset > entry.asciiSize())
+            return -1;
+        if (offset == entry.asciiSize())
+            return entry.length;
+
+        int chunk = Arrays.binarySearch(checkpoints, 0, checkpoints.length - 1, offset);
+        if (chunk >= 0)
+            return (long) chunk * CHUNK_SIZE;
+        chunk = -chunk - 2;
+
+        long start = (long) chunk * CHUNK_SIZE;
+        long wire = checkpoints[chunk];
+        long mapStart = (start > 0) ? start - 1 : 0;
+        int mapSize = (int) (Math.min(start + CHUNK_SIZE, entry.length) - mapStart);
+        ByteBuffer buf = VirtualFileSystem.INSTANCE.map(path, mapStart, mapSize);
+
+        boolean prevCr = (start > 0) && buf.get(0) == AsciiCodec.CR;
+        for (int i = (int) (start - mapStart); i < mapSize; i++) {
+            if (wire == offset)
+                return mapStart + i;
+            byte b = buf.get(i);
+            wire += (b == AsciiCodec.LF && !prevCr) ? 2 : 1;
+            if (wire > offset)
+                return -1;
+            prevCr = b == AsciiCodec.CR;
+        }
+        return (wire == offset) ? mapStart + mapSize : -1;
+    }
+
+    private SizeEntry entry(VirtualPath path) throws IOException {
+        String key = VirtualFileSystem.INSTANCE.key(path);
+        BasicFileAttributes attrs = VirtualFileSystem.INSTANCE.attributes(path);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        long length = attrs.size();
+
+        synchronized (this) {
+            if (!loaded)
+                load();
+            SizeEntry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length)
+                return entry;
+        }
+
+        SizeEntry entry = new SizeEntry(lastModified, length, checkpoints(path, length));
+
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    static long count(VirtualPath path, long length) throws IOException {
+        long checkpoints[] = checkpoints(path, length);
+        return checkpoints[checkpoints.length - 1];
+    }
+
+    private static long[] checkpoints(VirtualPath path, long length) throws IOException {
+        int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        long checkpoints[] = new long[chunks + 1];
+        if (length == 0)
+            return checkpoints;
+
+        IOException failure[] = new IOException[1];
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            try {
+                checkpoints[i + 1] = countChunk(path, (long) i * CHUNK_SIZE, length);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+
+        for (int i = 1; i <= chunks; i++)
+            checkpoints[i] += checkpoints[i - 1];
+        return checkpoints;
+    }
+
+    private static long countChunk(VirtualPath path, long start, long length) throws IOException {
+        // map one byte of the previous chunk so a CRLF split between chunks is seen
+        long mapStart = (start > 0) ? start - 1 : 0;
+        int mapSize = (int) (Math.min(start + CHUNK_SIZE, length) - mapStart);
+        ByteBuffer buf = VirtualFileSystem.INSTANCE.map(path, mapStart, mapSize);
+
+        if (start == 0)
+            return AsciiCodec.encodedLength(buf, 0, mapSize, false);
+        return AsciiCodec.encodedLength(buf, 1, mapSize, buf.get(0) == AsciiCodec.CR);
+    }
+
+    private void load() {
+        loaded = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+
+        if (!indexFile.isFile() || !StateDirectory.INSTANCE.isSafe(indexFile))
+            return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != FORMAT)
+                return;
+            int count = in.readInt();
+            if (count < 0 || count > capacity)
+                throw new IOException(indexFile + ": bad entry count " + count);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                int checkpointCount = in.readInt();
+                if (length < 0 || checkpointCount != (length + CHUNK_SIZE - 1) / CHUNK_SIZE + 1)
+                    throw new IOException(indexFile + ": bad checkpoints for " + key);
+                long checkpoints[] = new long[checkpointCount];
+                for (int j = 0; j < checkpoints.length; j++)
+                    checkpoints[j] = in.readLong();
+                if (!isPossible(length, checkpoints))
+                    throw new IOException(indexFile + ": bad checkpoints for " + key);
+                if (isCurrent(key, lastModified, length))
+                    entries.put(key, new SizeEntry(lastModified, length, checkpoints));
+            }
+        } catch (IOException e) {
+            entries.clear();
+            ServerLog.INSTANCE.error(e);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether every chunk grows by at least its length and at most
+     * twice that, as translating its line ends can.
+     */
+    private static boolean isPossible(long length, long checkpoints[]) {
+        if (checkpoints[0] != 0)
+            return false;
+        for (int i = 1; i < checkpoints.length; i++) {
+            long chunk = Math.min(CHUNK_SIZE, length - (long) (i - 1) * CHUNK_SIZE);
+            long wire = checkpoints[i] - checkpoints[i - 1];
+            if (wire < chunk || wire > 2 * chunk)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the disk file {@code key} names still has the given
+     * modification time and length.
+     */
+    private static boolean isCurrent(String key, long lastModified, long length) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(key), BasicFileAttributes.class);
+            return attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() == lastModified
+                    && attrs.size() == length;
+        } catch (IOException | InvalidPathException e) {
+            return false;
+        }
+    }
+
+    synchronized void save() {
+        if (!StateDirectory.INSTANCE.isSafe(indexFile))
+            return;
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, SizeEntry> e : entries.entrySet()) {
+                SizeEntry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.checkpoints.length);
+                for (long checkpoint : entry.checkpoints)
+                    out.writeLong(checkpoint);
+            }
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+}
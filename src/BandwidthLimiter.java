@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shapes transfers through a hierarchy of token buckets: one for the whole
+ * server, one per user and one per session, with default rates in bytes
+ * per second from -Dftp.rate.global, -Dftp.rate.user and -Dftp.rate.session
+ * (0, unlimited, for all three). Every rate can be changed while transfers
+ * run. A user's bucket lives as long as one of the user's sessions does.
+ *
+ * <p>Transfers account for their bytes in quanta of about an eighth of a
+ * second at the tightest rate, so shaping costs a few reservations per
+ * second however fast the link is. What is left of the last quantum is
+ * charged when the transfer finishes, and the next transfer waits for it.
+ */
+class BandwidthLimiter {
+    static final long SESSION_RATE = Long.getLong("ftp.rate.session", 0);
+
+    private static final long USER_RATE = Long.getLong("ftp.rate.user", 0);
+    private static final long MIN_QUANTUM = 16 * 1024;
+    private static final long MAX_QUANTUM = 8 * 1024 * 1024;
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+
+    static final BandwidthLimiter INSTANCE = new BandwidthLimiter(Long.getLong("ftp.rate.global", 0));
+
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String, UserShare> users = new ConcurrentHashMap<>();
+
+    private static final class UserShare {
+        final TokenBucket bucket = new TokenBucket(USER_RATE);
+        int sessions = 0;
+    }
+
+    BandwidthLimiter(long globalRate) {
+        this.global = new TokenBucket(globalRate);
+    }
+
+    TokenBucket getGlobal() {
+        return global;
+    }
+
+    /**
+     * Returns the bucket of {@code user} for a session that logged in as
+     * that user, which must hand it back with {@link #releaseUser}.
+     */
+    TokenBucket acquireUser(String user) {
+        return users.compute(user, (u, share) -> {
+            if (share == null)
+                share = new UserShare();
+            share.sessions++;
+            return share;
+        }).bucket;
+    }
+
+    /**
+     * Hands back a bucket taken with {@link #acquireUser}; the last session
+     * of a user drops it.
+     */
+    void releaseUser(String user) {
+        users.computeIfPresent(user, (u, share) -> (--share.sessions > 0) ? share : null);
+    }
+
+    /**
+     * Returns the shaper for one transfer over {@code channel}, charged to
+     * {@code user}'s bucket unless it is null, which also counts the bytes
+     * moved into {@code bytes}.
+     */
+    Shaper shaper(TokenBucket session, TokenBucket user, Channel channel, LongAdder bytes) {
+        TokenBucket buckets[] = user != null
+                ? new TokenBucket[] { session, user, global }
+                : new TokenBucket[] { session, global };
+        return new Shaper(buckets, channel, bytes);
+    }
+
+    /**
+     * Paces one transfer. Waits are cut short once the data channel is
+     * closed, so an aborted transfer does not sleep out its debt.
+     */
+    static class Shaper {
+        private final TokenBucket buckets[];
+        private final Channel channel;
+        private final LongAdder bytes;
+        private long pending = 0;
+        private long total = 0;
+        // the first bytes wait out any debt earlier transfers left behind
+        private boolean isStarted = false;
+
+        private Shaper(TokenBucket buckets[], Channel channel, LongAdder bytes) {
+            this.buckets = buckets;
+            this.channel = channel;
+            this.bytes = bytes;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        /**
+         * Charges the bytes not yet reserved without waiting for them, so a
+         * transfer shorter than a quantum is paid for by the next one.
+         */
+        void finish() {
+            if (pending == 0)
+                return;
+            for (TokenBucket bucket : buckets)
+                bucket.reserve(pending);
+            pending = 0;
+        }
+
+        /**
+         * Returns a channel that writes to {@code out} in quanta and accounts
+         * for each.
+         */
+        WritableByteChannel wrap(WritableByteChannel out) {
+            return new WritableByteChannel() {
+                public int write(ByteBuffer src) throws IOException {
+                    int limit = src.limit();
+                    src.limit((int) Math.min(limit, src.position() + quantum(src.remaining())));
+                    int n;
+                    try {
+                        n = out.write(src);
+                    } finally {
+                        src.limit(limit);
+                    }
+                    account(n);
+                    return n;
+                }
+
+                public boolean isOpen() {
+                    return out.isOpen();
+                }
+
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        /**
+         * Returns how many bytes to move before the next call to
+         * {@link #account}, at most {@code max}.
+         */
+        long quantum(long max) {
+            long rate = Long.MAX_VALUE;
+            for (TokenBucket bucket : buckets) {
+                long r = bucket.getRate();
+                if (r > 0)
+                    rate = Math.min(rate, r);
+            }
+            if (rate == Long.MAX_VALUE)
+                return max;
+            return Math.min(max, Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, rate / 8)));
+        }
+
+        /**
+         * Accounts for {@code count} bytes moved and waits until they are
+         * within every rate.
+         */
+        void account(long count) throws IOException {
+            bytes.add(count);
+            total += count;
+            pending += count;
+            if (isStarted && pending < quantum(MAX_QUANTUM))
+                return;
+            isStarted = true;
+
+            long wait = 0;
+            for (TokenBucket bucket : buckets)
+                wait = Math.max(wait, bucket.reserve(pending));
+            pending = 0;
+
+            long deadline = System.nanoTime() + wait;
+            while (wait > 0 && channel.isOpen()) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_SLEEP));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                wait = deadline - System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zlib stream the way pigz does: the input is cut into blocks that
+ * are raw-deflated independently, each primed with the last 32K of the
+ * block before it as a dictionary and ended with a sync flush so the
+ * outputs can simply be concatenated. The checksum is kept on the writing
+ * thread. A block is compressed or waiting to be sent only while it holds
+ * a permit of {@code pending}, which streams may share to bound the memory
+ * they use together; block arrays are recycled between streams.
+ */
+class BlockDeflaterOutputStream extends OutputStream {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    private static final int MAX_SPARE_BLOCKS = 16;
+
+    // a Deflater and an output buffer per compressing thread, reset between blocks
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    // block arrays no compression reads any more
+    private static final ArrayBlockingQueue<byte[]> spare = new ArrayBlockingQueue<>(MAX_SPARE_BLOCKS);
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final Semaphore permits;
+    private final ArrayDeque<Block> pending = new ArrayDeque<>();
+    private final Adler32 checksum = new Adler32();
+
+    private byte block[];
+    private int count = 0;
+    private byte previous[];
+    private boolean isStarted = false;
+    private boolean isClosed = false;
+    private boolean isDiscarded = false;
+
+    BlockDeflaterOutputStream(OutputStream out, int level, ExecutorService pool, int blockSize, Semaphore permits) {
+        this.out = out;
+        this.level = level;
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.permits = permits;
+        this.block = newBlock();
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        if (!isStarted)
+            writeHeader();
+        checksum.update(b, off, len);
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize)
+                submit(false);
+        }
+    }
+
+    public void close() throws IOException {
+        if (isClosed)
+            return;
+        if (!isStarted)
+            writeHeader();
+        isClosed = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty())
+                writePending();
+            recycle(previous);
+            previous = null;
+            block = null;
+
+            long adler = checksum.getValue();
+            out.write(new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler });
+            out.close();
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Gives up the blocks not yet sent and their permits, and the Deflater
+     * of the writing thread if it compressed them itself. Does nothing after
+     * a successful close; call it when a transfer ends without one.
+     */
+    void discard() {
+        if (isDiscarded)
+            return;
+        isDiscarded = true;
+        isClosed = true;
+        Block abandoned;
+        while ((abandoned = pending.poll()) != null) {
+            // a compression still running may read the arrays, so they are not recycled
+            abandoned.result.cancel(false);
+            permits.release();
+        }
+        if (pool == null) {
+            deflaters.get().end();
+            deflaters.remove();
+            scratch.remove();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // CMF: deflate with a 32K window; FLG: the level hint, and a check so the pair is a multiple of 31
+        int levelHint = (level >= 0 && level < 2) ? 0 : (level >= 2 && level < 6) ? 1 : (level < 0 || level == 6) ? 2 : 3;
+        int header = (0x78 << 8) | (levelHint << 6);
+        header += 31 - header % 31;
+        out.write(header >>> 8);
+        out.write(header & 0xff);
+        isStarted = true;
+    }
+
+    private void submit(boolean isLast) throws IOException {
+        byte input[] = block;
+        int length = count;
+        byte dictionary[] = previous;
+        boolean isDictionary = length >= DICTIONARY_SIZE;
+        if (pool == null) {
+            out.write(compress(input, length, dictionary, level, isLast));
+            recycle(dictionary);
+            if (!isDictionary)
+                recycle(input);
+        } else {
+            acquire();
+            pending.add(new Block(pool.submit(() -> compress(input, length, dictionary, level, isLast)),
+                    isDictionary ? null : input, dictionary));
+        }
+        previous = isDictionary ? input : null;
+        block = isLast ? null : newBlock();
+        count = 0;
+    }
+
+    private void acquire() throws IOException {
+        // a stream sends its own blocks rather than wait for other streams to send theirs
+        while (!permits.tryAcquire()) {
+            if (!pending.isEmpty()) {
+                writePending();
+                continue;
+            }
+            try {
+                permits.acquire();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void writePending() throws IOException {
+        Block next = pending.peek();
+        byte compressed[];
+        try {
+            compressed = next.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        pending.poll();
+        permits.release();
+        // the compressions before this one are done too, so nothing reads its dictionary
+        recycle(next.dictionary);
+        recycle(next.input);
+        out.write(compressed);
+    }
+
+    private byte[] newBlock() {
+        byte recycled[] = spare.poll();
+        return (recycled != null && recycled.length == blockSize) ? recycled : new byte[blockSize];
+    }
+
+    private static void recycle(byte block[]) {
+        if (block != null)
+            spare.offer(block);
+    }
+
+    private static byte[] compress(byte input[], int length, byte dictionary[], int level, boolean isLast) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        if (dictionary != null)
+            deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        deflater.setInput(input, 0, length);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        byte buf[] = scratch.get();
+        if (isLast) {
+            deflater.finish();
+            while (!deflater.finished())
+                compressed.write(buf, 0, deflater.deflate(buf));
+        } else {
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                compressed.write(buf, 0, n);
+            } while (n == buf.length || !deflater.needsInput());
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * A block being compressed, with the arrays its compression reads that
+     * can be recycled once it is done.
+     */
+    private static class Block {
+        final Future<byte[]> result;
+        final byte input[];
+        final byte dictionary[];
+
+        Block(Future<byte[]> result, byte input[], byte dictionary[]) {
+            this.result = result;
+            this.input = input;
+            this.dictionary = dictionary;
+        }
+    }
+}
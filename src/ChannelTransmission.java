@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Zero-copy transmission engine for untranslated (binary) transfers.
+ * Bytes go straight from the file's channel to the data socket's channel,
+ * so the kernel can use sendfile and never copy them into the JVM heap.
+ */
+class ChannelTransmission {
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final boolean USE_TRANSFER_FROM =
+            Boolean.parseBoolean(System.getProperty("ftp.receive.transferFrom", "false"));
+
+    private static final BufferPool bufferPool = new BufferPool(
+            Integer.getInteger("ftp.buffer.size", 256 * 1024),
+            Integer.getInteger("ftp.buffer.pooled", 64));
+
+    private volatile boolean isAborted = false;
+    // position after the last byte received, kept as it goes so a failed receive can trim to it
+    private long received;
+
+    void abort() {
+        isAborted = true;
+    }
+
+    /**
+     * Sends {@code in} from {@code position} to its end. Only positional
+     * reads are used, as the channel may be shared with other downloads.
+     */
+    void sendFile(FileHandleCache.Handle in, long position, SocketChannel out, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        isAborted = false;
+
+        FileChannel channel = in.getChannel();
+        long size = channel.size();
+        while (position < size && !isAborted) {
+            in.readAhead(position);
+            long count = channel.transferTo(position, Math.min(shaper.quantum(CHUNK_SIZE), size - position), out);
+            if (count <= 0)
+                break;
+            position += count;
+            shaper.account(count);
+        }
+    }
+
+    /**
+     * Sends {@code in} from {@code position} to its end, for files that are
+     * not on disk and so not in the handle cache.
+     */
+    void sendFile(FileChannel in, long position, SocketChannel out, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        isAborted = false;
+
+        long size = in.size();
+        while (position < size && !isAborted) {
+            long count = in.transferTo(position, Math.min(shaper.quantum(CHUNK_SIZE), size - position), out);
+            if (count <= 0)
+                break;
+            position += count;
+            shaper.account(count);
+        }
+    }
+
+    /**
+     * Sends what remains of {@code in}, a file's cached content.
+     */
+    void sendBuffer(ByteBuffer in, SocketChannel out, BandwidthLimiter.Shaper shaper) throws IOException {
+        isAborted = false;
+
+        int end = in.limit();
+        while (in.position() < end && !isAborted) {
+            in.limit((int) Math.min(end, in.position() + shaper.quantum(CHUNK_SIZE)));
+            long count = out.write(in);
+            in.limit(end);
+            shaper.account(count);
+        }
+    }
+
+    /**
+     * Receives into {@code out} from {@code position} on until the client
+     * closes the data connection, and returns the position after the last
+     * byte written. If {@code allocationSize} is positive the file is
+     * extended by that much up front and trimmed afterwards, also when the
+     * transfer fails. What is received is also fed to {@code digest} unless
+     * it is null.
+     */
+    long receiveFile(SocketChannel in, FileChannel out, long position, long allocationSize,
+                     DigestIndex.Upload digest, BandwidthLimiter.Shaper shaper) throws IOException {
+        isAborted = false;
+
+        long size = out.size();
+        boolean extend = position + allocationSize > size;
+        received = position;
+        if (allocationSize > 0 && extend)
+            out.write(ByteBuffer.allocate(1), position + allocationSize - 1);
+
+        try {
+            // transferFrom never brings the bytes into the JVM, so they cannot be digested on the way
+            if (USE_TRANSFER_FROM && digest == null)
+                transferFrom(in, out, position, shaper);
+            else
+                copyBuffered(in, out, position, digest, shaper);
+        } finally {
+            // an aborted or failed transfer must not leave the file padded to the announced size
+            if (allocationSize > 0 && extend)
+                out.truncate(Math.max(received, size));
+        }
+        return received;
+    }
+
+    private void transferFrom(SocketChannel in, FileChannel out, long position, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        long count;
+        while (!isAborted && (count = out.transferFrom(in, position, shaper.quantum(CHUNK_SIZE))) > 0) {
+            position += count;
+            received = position;
+            shaper.account(count);
+        }
+    }
+
+    private void copyBuffered(SocketChannel in, FileChannel out, long position, DigestIndex.Upload digest,
+                              BandwidthLimiter.Shaper shaper) throws IOException {
+        ByteBuffer buf = bufferPool.acquire();
+        try {
+            boolean eof = false;
+            while (!eof && !isAborted) {
+                buf.limit((int) shaper.quantum(buf.capacity()));
+                while (buf.hasRemaining()) {
+                    if (in.read(buf) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buf.flip();
+                shaper.account(buf.remaining());
+                if (digest != null)
+                    digest.update(buf);
+                while (buf.hasRemaining()) {
+                    position += out.write(buf, position);
+                    received = position;
+                }
+                buf.clear();
+            }
+        } finally {
+            bufferPool.release(buf);
+        }
+    }
+}
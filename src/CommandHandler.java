@@ -0,0 +1,8 @@
+import java.util.StringTokenizer;
+
+/**
+ * Handler for one FTP verb.
+ */
+interface CommandHandler {
+    int handle(ServerPI pi, String line, StringTokenizer st) throws CommandException;
+}
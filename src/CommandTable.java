@@ -0,0 +1,127 @@
+import java.util.LinkedHashMap;
+import java.util.StringTokenizer;
+
+/**
+ * Immutable verb to handler table, built once at startup. A verb of up to
+ * eight ASCII characters is packed case-insensitively into a long straight
+ * from the command line, so looking it up allocates nothing, and anything
+ * longer or non-ASCII is rejected without a probe. Every handler is timed
+ * into its verb's latency histogram in {@link Metrics}.
+ */
+final class CommandTable {
+    private static final int MAX_VERB_LENGTH = 8;
+
+    private final long keys[];
+    private final CommandHandler handlers[];
+    private final int mask;
+
+    private CommandTable(long keys[], CommandHandler handlers[]) {
+        this.keys = keys;
+        this.handlers = handlers;
+        this.mask = keys.length - 1;
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns the handler for the verb {@code line[start, end)}, or null.
+     */
+    CommandHandler get(String line, int start, int end) {
+        long key = key(line, start, end);
+        if (key == 0)
+            return null;
+
+        for (int i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return handlers[i];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the first character of the verb in {@code line},
+     * skipping leading whitespace the way {@link StringTokenizer} does.
+     */
+    static int verbStart(String line) {
+        int i = 0;
+        while (i < line.length() && isDelimiter(line.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /**
+     * Returns the index just past the verb starting at {@code start}.
+     */
+    static int verbEnd(String line, int start) {
+        int i = start;
+        while (i < line.length() && !isDelimiter(line.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static long key(String verb, int start, int end) {
+        int length = end - start;
+        if (length <= 0 || length > MAX_VERB_LENGTH)
+            return 0;
+
+        long key = 0;
+        for (int i = start; i < end; i++) {
+            char c = verb.charAt(i);
+            if (c >= 'a' && c <= 'z')
+                c -= 'a' - 'A';
+            else if (c > 0x7f)
+                return 0;
+            key = (key << 8) | c;
+        }
+        return key;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    static class Builder {
+        private final LinkedHashMap<String, CommandHandler> entries = new LinkedHashMap<>();
+
+        Builder add(String verb, CommandHandler handler) {
+            if (key(verb, 0, verb.length()) == 0)
+                throw new IllegalArgumentException("Invalid verb: " + verb);
+            entries.put(verb, handler);
+            return this;
+        }
+
+        private static CommandHandler timed(CommandHandler handler, Histogram latency) {
+            return (pi, line, st) -> {
+                long start = System.nanoTime();
+                try {
+                    return handler.handle(pi, line, st);
+                } finally {
+                    latency.record(System.nanoTime() - start);
+                }
+            };
+        }
+
+        CommandTable build() {
+            int size = Integer.highestOneBit(Math.max(entries.size(), 1) * 4 - 1) << 1;
+            long keys[] = new long[size];
+            CommandHandler handlers[] = new CommandHandler[size];
+
+            entries.forEach((verb, handler) -> {
+                long key = key(verb, 0, verb.length());
+                int i = hash(key) & (size - 1);
+                while (keys[i] != 0 && keys[i] != key)
+                    i = (i + 1) & (size - 1);
+                keys[i] = key;
+                handlers[i] = timed(handler, Metrics.INSTANCE.commandLatency(verb.toUpperCase()));
+            });
+            return new CommandTable(keys, handlers);
+        }
+    }
+}
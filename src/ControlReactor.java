@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Event-driven control connection engine. A few selector threads read
+ * command lines from non-blocking channels and hand complete lines to a
+ * worker pool, so an idle session holds no thread, only its
+ * {@link ControlSession} and a small line buffer.
+ */
+class ControlReactor {
+    private final int port;
+    private final int backlog;
+    private final ReactorLoop loops[];
+
+    ControlReactor(int port, int backlog, int selectorCount, ExecutorService workers) throws IOException {
+        this.port = port;
+        this.backlog = backlog;
+        this.loops = new ReactorLoop[selectorCount];
+        for (int i = 0; i < selectorCount; i++)
+            loops[i] = new ReactorLoop(workers);
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "ftp-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+}
+
+class ReactorLoop implements Runnable {
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    ReactorLoop(ExecutorService workers) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                ControlSession session = new ControlSession(this, key, workers);
+                key.attach(session);
+                session.open();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} on the selector thread. Interest sets are only
+     * changed from there.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ControlSession session = (ControlSession) key.attachment();
+                    if (session == null || !key.isValid())
+                        continue;
+                    try {
+                        if (key.isWritable())
+                            session.onWritable();
+                        if (key.isValid() && key.isReadable())
+                            session.onReadable();
+                    } catch (IOException e) {
+                        session.close();
+                    }
+                }
+            } catch (Exception e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+
+    static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+}
+
+/**
+ * One control connection in reactor mode. Lines are executed one at a time
+ * on the worker pool, which keeps replies in order; reading goes on while a
+ * command runs, so pipelined lines queue up, and is paused only once
+ * {@link ServerPI#MAX_PIPELINED_LINES} are waiting. ABOR and STAT skip the
+ * queue while a transfer is running. Replies to a batch of queued lines are
+ * sent in one write.
+ */
+class ControlSession {
+    private static final int INITIAL_LINE_SIZE = 512;
+    private static final int MAX_LINE_SIZE = 8192;
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final ReactorLoop loop;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final ExecutorService workers;
+    private final ServerPI pi;
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_LINE_SIZE);
+    private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private boolean busy = false;
+    private volatile boolean readPaused = false;
+    private volatile boolean closing = false;
+
+    ControlSession(ReactorLoop loop, SelectionKey key, ExecutorService workers) {
+        this.loop = loop;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.workers = workers;
+        this.pi = new ServerPI(channel.socket(), new ReplyChannel());
+    }
+
+    void open() {
+        pi.greet();
+    }
+
+    void onReadable() throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_LINE_SIZE)
+                throw new IOException("command line too long");
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        if (channel.read(in) < 0) {
+            close();
+            return;
+        }
+
+        in.flip();
+        int start = 0;
+        for (int i = 0; i < in.limit(); i++) {
+            if (in.get(i) != '\n')
+                continue;
+            int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+            String line = new String(in.array(), start, end - start, CHARSET);
+            if (ServerPI.isOutOfBand(line) && pi.isTransferring()) {
+                workers.execute(() -> runOutOfBand(line));
+            } else {
+                synchronized (this) {
+                    lines.add(line);
+                }
+            }
+            start = i + 1;
+        }
+        in.position(start);
+        in.compact();
+
+        if (!busy && hasLines()) {
+            busy = true;
+            workers.execute(this::runCommands);
+        }
+        if (pendingLines() >= ServerPI.MAX_PIPELINED_LINES) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private synchronized boolean hasLines() {
+        return !lines.isEmpty();
+    }
+
+    private synchronized int pendingLines() {
+        return lines.size();
+    }
+
+    private void runOutOfBand(String line) {
+        try {
+            pi.handleOutOfBand(line);
+        } catch (Exception e) {
+            ServerLog.INSTANCE.error(e);
+        }
+        pi.flush();
+    }
+
+    private void runCommands() {
+        String line;
+        while ((line = nextLine()) != null) {
+            boolean open;
+            try {
+                // the line sees the result of a transfer started before it
+                if (!ServerPI.isOutOfBand(line))
+                    pi.awaitTransfer();
+                open = pi.handleCommand(line);
+            } catch (Exception e) {
+                ServerLog.INSTANCE.error(e);
+                open = false;
+            }
+            if (!open) {
+                pi.flush();
+                closing = true;
+                loop.execute(this::onWritableQuietly);
+                return;
+            }
+            if (!hasLines())
+                pi.flush();
+        }
+    }
+
+    private String nextLine() {
+        synchronized (this) {
+            String line = lines.poll();
+            if (line != null) {
+                if (readPaused && lines.size() < ServerPI.MAX_PIPELINED_LINES)
+                    loop.execute(this::resumeReading);
+                return line;
+            }
+        }
+        loop.execute(() -> {
+            // lines read since the queue ran dry are still to be run
+            if (hasLines() && key.isValid()) {
+                workers.execute(this::runCommands);
+                return;
+            }
+            busy = false;
+        });
+        return null;
+    }
+
+    private void resumeReading() {
+        if (!readPaused || pendingLines() >= ServerPI.MAX_PIPELINED_LINES || !key.isValid() || closing)
+            return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    void onWritable() throws IOException {
+        ByteBuffer buf;
+        while ((buf = out.peek()) != null) {
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            out.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closing)
+            close();
+    }
+
+    private void onWritableQuietly() {
+        if (!key.isValid())
+            return;
+        try {
+            onWritable();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        pi.close();
+        key.cancel();
+        ReactorLoop.closeQuietly(channel);
+    }
+
+    /**
+     * Sends reply bytes from the calling thread while the socket takes
+     * them, and copies what is left to the queue the selector thread
+     * drains. Once anything is queued, later replies queue behind it.
+     */
+    private class ReplyChannel implements WritableByteChannel {
+        public synchronized int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (out.isEmpty())
+                channel.write(src);
+            if (src.hasRemaining()) {
+                ByteBuffer rest = ByteBuffer.allocate(src.remaining());
+                rest.put(src).flip();
+                out.add(rest);
+                loop.execute(ControlSession.this::onWritableQuietly);
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() {
+        }
+    }
+}
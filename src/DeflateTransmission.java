@@ -0,0 +1,143 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Transmission engine for MODE Z: the data connection carries one zlib
+ * stream of the data in its representation's wire form. Outgoing data is
+ * compressed in independent blocks on a shared pool, so one large RETR can
+ * use several cores; incoming data is inflated as it arrives.
+ *
+ * <p>-Dftp.deflate.level sets the default level (6), -Dftp.deflate.threads
+ * the pool size (one per core; 1 compresses on the transfer thread) and
+ * -Dftp.deflate.blockSize the uncompressed size of a block (128K). At most
+ * two blocks per pool thread are compressed or waiting to be sent at once,
+ * across all transfers.
+ *
+ * <p>Rate limits and the byte counts in the metrics and the transfer log
+ * apply to the compressed bytes on the data connection, as in stream mode.
+ */
+class DeflateTransmission {
+    static final int DEFAULT_LEVEL = Integer.getInteger("ftp.deflate.level", 6);
+    private static final int THREADS =
+            Integer.getInteger("ftp.deflate.threads", Runtime.getRuntime().availableProcessors());
+    private static final int BLOCK_SIZE = Integer.getInteger("ftp.deflate.blockSize", 128 * 1024);
+    private static final int BUF_SIZE = 64 * 1024;
+
+    private static final ExecutorService pool = (THREADS > 1) ? Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "ftp-deflate");
+        thread.setDaemon(true);
+        return thread;
+    }) : null;
+
+    // the blocks compressed or waiting to be sent, across all transfers
+    private static final Semaphore pending = new Semaphore(2 * THREADS);
+
+    private volatile boolean isAborted = false;
+
+    void abort() {
+        isAborted = true;
+    }
+
+    /**
+     * Returns a stream that compresses what is written to it onto
+     * {@code out} and finishes the zlib stream when closed.
+     */
+    static BlockDeflaterOutputStream deflate(OutputStream out, int level) {
+        return new BlockDeflaterOutputStream(out, level, pool, BLOCK_SIZE, pending);
+    }
+
+    void sendFile(InputStream in, Socket s, Representation representation, boolean afterCr, int level,
+                  BandwidthLimiter.Shaper shaper) throws IOException {
+        isAborted = false;
+
+        OutputStream wire = new ShapedOutputStream(s.getOutputStream(), shaper);
+        BlockDeflaterOutputStream deflated = deflate(wire, level);
+        try {
+            OutputStream out = representation.getOutputStream(deflated, afterCr);
+            byte buf[] = new byte[BUF_SIZE];
+            int nread;
+            while (!isAborted && (nread = in.read(buf, 0, BUF_SIZE)) > 0)
+                out.write(buf, 0, nread);
+            out.close();
+        } finally {
+            deflated.discard();
+        }
+    }
+
+    void receiveFile(Socket s, OutputStream out, Representation representation, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        isAborted = false;
+
+        Inflater inflater = new Inflater();
+        try {
+            InputStream wire = new ShapedInputStream(s.getInputStream(), shaper);
+            InputStream in = representation.getInputStream(new InflaterInputStream(wire, inflater, BUF_SIZE));
+            byte buf[] = new byte[BUF_SIZE];
+            int nread;
+            while (!isAborted && (nread = in.read(buf, 0, BUF_SIZE)) > 0)
+                out.write(buf, 0, nread);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Passes compressed output to the socket in quanta of {@code shaper}
+     * and accounts for each.
+     */
+    private static class ShapedOutputStream extends FilterOutputStream {
+        private final BandwidthLimiter.Shaper shaper;
+
+        ShapedOutputStream(OutputStream out, BandwidthLimiter.Shaper shaper) {
+            super(out);
+            this.shaper = shaper;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            shaper.account(1);
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+            while (len > 0) {
+                int n = (int) shaper.quantum(len);
+                out.write(b, off, n);
+                shaper.account(n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Reads compressed input from the socket in quanta of {@code shaper}
+     * and accounts for each.
+     */
+    private static class ShapedInputStream extends FilterInputStream {
+        private final BandwidthLimiter.Shaper shaper;
+
+        ShapedInputStream(InputStream in, BandwidthLimiter.Shaper shaper) {
+            super(in);
+            this.shaper = shaper;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                shaper.account(1);
+            return b;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            int nread = in.read(b, off, (int) shaper.quantum(len));
+            if (nread > 0)
+                shaper.account(nread);
+            return nread;
+        }
+    }
+}
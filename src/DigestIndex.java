@@ -0,0 +1,378 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of file contents for HASH and the XCRC family of commands.
+ * Files are read through mapped chunks; CRC32 chunks are checksummed
+ * in parallel and combined, while MD5 and the SHA digests, which cannot be
+ * split without changing their value, run over the chunks in order.
+ *
+ * <p>Whole-file digests are kept in a bounded LRU index keyed by algorithm
+ * and path and validated against the file's modification time and length.
+ * Uploads are digested as they are written, so a file just stored is
+ * verified without being read again. Like {@link AsciiSizeCache}, the index
+ * is loaded on first use and written back when the server shuts down.
+ *
+ * <p>-Dftp.digest.onStore lists the algorithms computed during STOR
+ * (SHA-256; empty for none), -Dftp.digest.entries bounds the index (10000)
+ * and -Dftp.digest.index names its file (digests.idx in the
+ * {@link StateDirectory}).
+ */
+class DigestIndex {
+    static final String ALGORITHMS[] = { "SHA-256", "SHA-512", "SHA-1", "MD5", "CRC32" };
+    static final String DEFAULT_ALGORITHM = "SHA-256";
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int FORMAT = 0x44494731;
+    private static final String ON_STORE[] = parseAlgorithms(System.getProperty("ftp.digest.onStore", "SHA-256"));
+
+    static final DigestIndex INSTANCE = new DigestIndex(
+            Integer.getInteger("ftp.digest.entries", 10000),
+            new File(System.getProperty("ftp.digest.index",
+                    StateDirectory.INSTANCE.file("digests.idx").getPath())));
+
+    private static class DigestEntry {
+        final long lastModified;
+        final long length;
+        final String digest;
+
+        DigestEntry(long lastModified, long length, String digest) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Digests of a file being stored from its first byte, fed with the bytes
+     * as they are written.
+     */
+    static final class Upload {
+        private final MessageDigest digests[];
+        private final CRC32 crc;
+
+        private Upload(String algorithms[]) {
+            digests = new MessageDigest[algorithms.length];
+            CRC32 crc = null;
+            for (int i = 0; i < algorithms.length; i++) {
+                if (algorithms[i].equals("CRC32"))
+                    crc = new CRC32();
+                else
+                    digests[i] = newDigest(algorithms[i]);
+            }
+            this.crc = crc;
+        }
+
+        /**
+         * Adds the remaining bytes of {@code buf}, leaving its position alone.
+         */
+        void update(ByteBuffer buf) {
+            for (MessageDigest digest : digests) {
+                if (digest != null)
+                    digest.update(buf.duplicate());
+            }
+            if (crc != null)
+                crc.update(buf.duplicate());
+        }
+
+        void update(byte b[], int off, int len) {
+            for (MessageDigest digest : digests) {
+                if (digest != null)
+                    digest.update(b, off, len);
+            }
+            if (crc != null)
+                crc.update(b, off, len);
+        }
+
+        /**
+         * Returns a stream that digests what is written through it to {@code out}.
+         */
+        OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte b[], int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    update(b, off, len);
+                }
+            };
+        }
+
+        private String result(int i) {
+            return (digests[i] != null) ? hex(digests[i].digest()) : crcHex(crc.getValue());
+        }
+    }
+
+    private final int capacity;
+    private final File indexFile;
+    private final LinkedHashMap<String, DigestEntry> entries;
+    private boolean loaded = false;
+
+    DigestIndex(int capacity, File indexFile) {
+        this.capacity = capacity;
+        this.indexFile = indexFile;
+        this.entries = new LinkedHashMap<String, DigestEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, DigestEntry> eldest) {
+                return size() > DigestIndex.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the supported name of {@code name}, in any case, or null.
+     */
+    static String algorithm(String name) {
+        for (String algorithm : ALGORITHMS) {
+            if (algorithm.equalsIgnoreCase(name))
+                return algorithm;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lowercase hex digest of bytes {@code start} to {@code end},
+     * exclusive, of file {@code path}. Digests of the whole file come from
+     * the index when it is unchanged.
+     */
+    String digest(VirtualPath path, String algorithm, long start, long end) throws IOException {
+        BasicFileAttributes attrs = VirtualFileSystem.INSTANCE.attributes(path);
+        long length = attrs.size();
+        if (start != 0 || end != length)
+            return compute(path, algorithm, start, end);
+
+        String key = algorithm + ':' + VirtualFileSystem.INSTANCE.key(path);
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        synchronized (this) {
+            if (!loaded)
+                load();
+            DigestEntry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length)
+                return entry.digest;
+        }
+
+        String digest = compute(path, algorithm, 0, length);
+        // keep it only if the file did not change while it was read
+        attrs = VirtualFileSystem.INSTANCE.attributes(path);
+        if (attrs.lastModifiedTime().toMillis() == lastModified && attrs.size() == length) {
+            synchronized (this) {
+                entries.put(key, new DigestEntry(lastModified, length, digest));
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Returns the digests to feed while a new file is stored, or null if
+     * none are wanted.
+     */
+    Upload upload() {
+        return (ON_STORE.length > 0) ? new Upload(ON_STORE) : null;
+    }
+
+    /**
+     * Records the digests of file {@code path}, stored completely through
+     * {@code upload}.
+     */
+    void record(VirtualPath path, Upload upload) {
+        try {
+            String key = VirtualFileSystem.INSTANCE.key(path);
+            BasicFileAttributes attrs = VirtualFileSystem.INSTANCE.attributes(path);
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            long length = attrs.size();
+            synchronized (this) {
+                if (!loaded)
+                    load();
+                for (int i = 0; i < ON_STORE.length; i++)
+                    entries.put(ON_STORE[i] + ':' + key, new DigestEntry(lastModified, length, upload.result(i)));
+            }
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+
+    private static String compute(VirtualPath path, String algorithm, long start, long end) throws IOException {
+        if (algorithm.equals("CRC32"))
+            return crcHex(crc32(path, start, end));
+
+        MessageDigest digest = newDigest(algorithm);
+        for (long position = start; position < end; position += CHUNK_SIZE)
+            digest.update(VirtualFileSystem.INSTANCE.map(path, position, Math.min(CHUNK_SIZE, end - position)));
+        return hex(digest.digest());
+    }
+
+    private static long crc32(VirtualPath path, long start, long end) throws IOException {
+        int chunks = (int) ((end - start + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        long crcs[] = new long[chunks];
+        IOException failure[] = new IOException[1];
+
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            try {
+                long position = start + (long) i * CHUNK_SIZE;
+                ByteBuffer buf = VirtualFileSystem.INSTANCE.map(path, position, Math.min(CHUNK_SIZE, end - position));
+                CRC32 crc = new CRC32();
+                crc.update(buf);
+                crcs[i] = crc.getValue();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null)
+            throw failure[0];
+
+        long crc = 0;
+        for (int i = 0; i < chunks; i++) {
+            long length = Math.min(CHUNK_SIZE, end - start - (long) i * CHUNK_SIZE);
+            crc = (i == 0) ? crcs[0] : crc32Combine(crc, crcs[i], length);
+        }
+        return crc;
+    }
+
+    /**
+     * Returns the CRC32 of two blocks from their CRCs and the length of the
+     * second, as zlib's crc32_combine does: the first CRC is carried over
+     * the second block's length of zeros by squaring the GF(2) matrix of a
+     * one-bit shift.
+     */
+    static long crc32Combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0)
+            return crc1;
+
+        long even[] = new long[32];
+        long odd[] = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two zero bits, then four
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0)
+                crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0)
+                break;
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0)
+                crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long matrix[], long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0)
+                sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long square[], long matrix[]) {
+        for (int n = 0; n < 32; n++)
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides all of ALGORITHMS
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] parseAlgorithms(String list) {
+        return Arrays.stream(list.split(",")).map(name -> algorithm(name.trim())).filter(Objects::nonNull)
+                .distinct().toArray(String[]::new);
+    }
+
+    private static String crcHex(long crc) {
+        return String.format("%08x", crc);
+    }
+
+    private static String hex(byte bytes[]) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return sb.toString();
+    }
+
+    private void load() {
+        loaded = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+
+        if (!indexFile.isFile() || !StateDirectory.INSTANCE.isSafe(indexFile))
+            return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != FORMAT)
+                return;
+            int count = in.readInt();
+            if (count < 0 || count > capacity)
+                throw new IOException(indexFile + ": bad entry count " + count);
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                entries.put(key, new DigestEntry(lastModified, length, in.readUTF()));
+            }
+        } catch (IOException e) {
+            entries.clear();
+            ServerLog.INSTANCE.error(e);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+
+    synchronized void save() {
+        if (!StateDirectory.INSTANCE.isSafe(indexFile))
+            return;
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, DigestEntry> e : entries.entrySet()) {
+                DigestEntry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeUTF(entry.digest);
+            }
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shares one open {@link FileChannel} among all concurrent downloads of the
+ * same file, as segmented clients open several ranged RETRs at once. A
+ * handle is keyed by path, modification time and length, is reference
+ * counted and is closed when its last reader releases it.
+ *
+ * <p>Each handle also runs one read-ahead for all of its readers: as a
+ * reader advances, the next windows of the file are mapped and loaded into
+ * the page cache on a background pool, once per window however many
+ * segments pass through it.
+ */
+class FileHandleCache {
+    private static final long WINDOW_SIZE = Long.getLong("ftp.readahead.window", 8 * 1024 * 1024);
+    private static final int WINDOW_DEPTH = Integer.getInteger("ftp.readahead.depth", 2);
+
+    static final FileHandleCache INSTANCE = new FileHandleCache();
+
+    private final ConcurrentHashMap<String, Handle> handles = new ConcurrentHashMap<>();
+    private final ExecutorService readAhead = Executors.newFixedThreadPool(
+            Integer.getInteger("ftp.readahead.threads", 2), r -> {
+                Thread thread = new Thread(r, "ftp-readahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    class Handle {
+        private final String key;
+        private final FileChannel channel;
+        private final long length;
+        private final Set<Long> loadedWindows = ConcurrentHashMap.newKeySet();
+        private int references = 0;
+
+        Handle(String key, FileChannel channel, long length) {
+            this.key = key;
+            this.channel = channel;
+            this.length = length;
+        }
+
+        FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Schedules the windows following {@code position} for loading.
+         */
+        void readAhead(long position) {
+            if (WINDOW_DEPTH <= 0)
+                return;
+
+            long window = position / WINDOW_SIZE;
+            for (long w = window + 1; w <= window + WINDOW_DEPTH; w++) {
+                long start = w * WINDOW_SIZE;
+                if (start >= length)
+                    break;
+                if (loadedWindows.add(w))
+                    FileHandleCache.this.readAhead.execute(() -> load(start));
+            }
+        }
+
+        private void load(long start) {
+            try {
+                if (channel.isOpen())
+                    channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length - start)).load();
+            } catch (IOException e) {
+                // the readers will fetch the window themselves
+            }
+        }
+
+        void release() {
+            handles.compute(key, (k, handle) -> {
+                if (handle != this || --references > 0)
+                    return handle;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    ServerLog.INSTANCE.error(e);
+                }
+                return null;
+            });
+        }
+    }
+
+    Handle acquire(File file) throws IOException {
+        String key = file.getCanonicalPath() + '\0' + file.lastModified() + '\0' + file.length();
+        try {
+            return handles.compute(key, (k, handle) -> {
+                if (handle == null) {
+                    try {
+                        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                        handle = new Handle(k, channel, channel.size());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                handle.references++;
+                return handle;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes uploads durable before they are acknowledged, without paying a
+ * separate fsync for every file. A new file is written under a staging
+ * name in the server's staging directory, /.ftp-staging, which sessions
+ * cannot name or list. Committing it forces its contents to disk, moves it
+ * to its real name in one step and forces the target directory, so no
+ * session ever sees a partial file and a 226 survives a crash. The move
+ * fails rather than replace a file that took the name during the upload.
+ * A directory mounted below the root is on another file system than the
+ * staging directory, so uploads there are copied into place instead.
+ *
+ * <p>Commits go to one committer thread. It takes whatever has queued up
+ * while the previous batch was being synced, waits up to -Dftp.sync.window
+ * milliseconds (2) for more, and then completes the batch: every file is
+ * forced, then renamed, then each directory involved is forced once.
+ * -Dftp.sync=false skips the forces and keeps only the move.
+ *
+ * <p>Uploads cut short by a crash leave their staging files behind; the
+ * server empties the staging directory when it starts.
+ */
+final class GroupCommit {
+    private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("ftp.sync", "true"));
+    private static final long WINDOW = Long.getLong("ftp.sync.window", 2);
+    private static final int MAX_BATCH = Integer.getInteger("ftp.sync.maxBatch", 256);
+    private static final String STAGING_SUFFIX = ".part";
+    // held here, so it stays interned
+    private static final VirtualPath STAGING = VirtualPath.ROOT.child(".ftp-staging");
+
+    static final GroupCommit INSTANCE = new GroupCommit();
+
+    /**
+     * Leaves the staging directory out of directory listings.
+     */
+    static final DirectoryStream.Filter<VirtualPath> VISIBLE = path -> !isStaging(path);
+
+    private static final class Request {
+        final FileChannel channel;
+        final VirtualPath staging;
+        final VirtualPath target;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(FileChannel channel, VirtualPath staging, VirtualPath target) {
+            this.channel = channel;
+            this.staging = staging;
+            this.target = target;
+        }
+    }
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+    private GroupCommit() {
+        if (SYNC) {
+            Thread committer = new Thread(this::run, "ftp-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * Returns a fresh staging name for an upload.
+     */
+    VirtualPath stagingPath() {
+        return STAGING.entry(Long.toString(sequence.incrementAndGet(), 36) + STAGING_SUFFIX);
+    }
+
+    /**
+     * Returns whether {@code path} is the staging directory or in it.
+     */
+    static boolean isStaging(VirtualPath path) {
+        for (VirtualPath p = path; !p.isRoot(); p = p.getParent()) {
+            if (p.equals(STAGING))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates the staging directory, or deletes what an earlier run left in
+     * it. Called before the server accepts sessions, so no upload of this
+     * run is there yet.
+     */
+    void sweep() {
+        VirtualFileSystem vfs = VirtualFileSystem.INSTANCE;
+        try {
+            vfs.createDirectory(STAGING);
+            return;
+        } catch (FileAlreadyExistsException e) {
+            // left by an earlier run
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+            return;
+        }
+
+        List<VirtualPath> leftovers = new ArrayList<>();
+        try (DirectoryStream<VirtualPath> entries = vfs.newDirectoryStream(STAGING, path -> true)) {
+            for (VirtualPath entry : entries)
+                leftovers.add(entry);
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+        for (VirtualPath leftover : leftovers) {
+            try {
+                vfs.delete(leftover);
+                ServerLog.INSTANCE.warn("removed the staging file of an interrupted upload: " + leftover);
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+
+    /**
+     * Makes what was written to {@code channel} durable and, unless
+     * {@code staging} is null, moves the staging file onto {@code target}.
+     * Returns once that is done.
+     */
+    void commit(FileChannel channel, VirtualPath staging, VirtualPath target) throws IOException {
+        Request request = new Request(channel, staging, target);
+        if (SYNC) {
+            queue.add(request);
+        } else {
+            List<Request> batch = new ArrayList<>(1);
+            batch.add(request);
+            complete(batch);
+        }
+
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW);
+                long wait;
+                while (batch.size() < MAX_BATCH && (wait = deadline - System.nanoTime()) > 0) {
+                    Request next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                complete(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                ServerLog.INSTANCE.error(e);
+                for (Request request : batch)
+                    request.done.completeExceptionally(e);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void complete(List<Request> batch) {
+        Metrics.INSTANCE.commitBatches.increment();
+        Metrics.INSTANCE.commitFiles.add(batch.size());
+
+        // contents first, so a rename never exposes data that is not on disk
+        if (SYNC) {
+            for (Request request : batch) {
+                try {
+                    request.channel.force(false);
+                } catch (IOException e) {
+                    request.done.completeExceptionally(e);
+                }
+            }
+        }
+
+        Set<VirtualPath> directories = new LinkedHashSet<>();
+        for (Request request : batch) {
+            if (request.done.isDone())
+                continue;
+            try {
+                if (request.staging != null)
+                    VirtualFileSystem.INSTANCE.move(request.staging, request.target);
+                directories.add(request.target.getParent());
+            } catch (IOException e) {
+                request.done.completeExceptionally(e);
+            }
+        }
+
+        if (SYNC) {
+            for (VirtualPath directory : directories) {
+                try {
+                    VirtualFileSystem.INSTANCE.forceDirectory(directory);
+                } catch (IOException e) {
+                    for (Request request : batch) {
+                        if (directory.equals(request.target.getParent()))
+                            request.done.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+
+        for (Request request : batch)
+            request.done.complete(null);
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Off-heap cache of the contents of small, popular files, so repeated RETRs
+ * of the same manifests and checksums are written to the data socket
+ * straight from memory. The raw bytes and the TYPE A form of a file are
+ * separate entries, each in its own direct buffer, keyed by representation
+ * and path and validated against the file's modification time and length.
+ *
+ * <p>Admission and eviction follow W-TinyLFU, weighted by size: every
+ * request is counted in a frequency sketch, a file is loaded only on its
+ * second request, and a loaded file first goes into a small LRU window.
+ * When the window overflows, its eldest entry joins the main LRU only if
+ * it has been requested more often than each main entry it would push out.
+ * One-off downloads therefore cannot flush out the popular files.
+ *
+ * <p>-Dftp.hotcache.bytes bounds the total size (64MB; 0 disables) and
+ * -Dftp.hotcache.maxFile the size of a file worth caching (1MB).
+ */
+class HotFileCache {
+    private static final long CAPACITY = Long.getLong("ftp.hotcache.bytes", 64L * 1024 * 1024);
+    private static final long MAX_FILE_SIZE = Long.getLong("ftp.hotcache.maxFile", 1024 * 1024);
+    private static final int WINDOW_PERCENT = 1;
+    private static final int AVERAGE_FILE_SIZE = 4096;
+
+    static final HotFileCache INSTANCE = new HotFileCache(CAPACITY);
+
+    private static final class Entry {
+        final String key;
+        final long lastModified;
+        final long length;
+        final ByteBuffer content;
+        boolean inWindow = true;
+
+        Entry(String key, long lastModified, long length, ByteBuffer content) {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.content = content;
+        }
+
+        long weight() {
+            return content.capacity();
+        }
+    }
+
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long windowWeight = 0;
+    private long mainWeight = 0;
+
+    HotFileCache(long capacity) {
+        this.windowCapacity = Math.min(capacity, Math.max(capacity * WINDOW_PERCENT / 100, MAX_FILE_SIZE));
+        this.mainCapacity = capacity - windowCapacity;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, capacity / AVERAGE_FILE_SIZE)));
+    }
+
+    /**
+     * Returns the content of {@code file} in {@code representation} as a
+     * buffer of its own, or null if the file is not worth caching or has not
+     * been asked for often enough yet.
+     */
+    ByteBuffer get(File file, Representation representation) throws IOException {
+        long length = file.length();
+        if (windowCapacity <= 0 || length > MAX_FILE_SIZE)
+            return null;
+
+        String key = representation.getCode() + file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        boolean isWanted;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = lookup(key);
+            if (entry != null) {
+                if (entry.lastModified == lastModified && entry.length == length) {
+                    Metrics.INSTANCE.hotCacheHits.increment();
+                    return entry.content.duplicate();
+                }
+                remove(entry);
+            }
+            isWanted = sketch.frequency(key) > 1;
+        }
+
+        Metrics.INSTANCE.hotCacheMisses.increment();
+        if (!isWanted)
+            return null;
+        ByteBuffer content = load(file, length, representation);
+        if (content == null)
+            return null;
+        synchronized (this) {
+            admit(new Entry(key, lastModified, length, content));
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Drops both forms of {@code file}, as it has been replaced or deleted.
+     */
+    void invalidate(File file) {
+        try {
+            String path = file.getCanonicalPath();
+            synchronized (this) {
+                for (char code : new char[] { Representation.ASCII.getCode(), Representation.IMAGE.getCode() }) {
+                    Entry entry = lookup(code + path);
+                    if (entry != null)
+                        remove(entry);
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+
+    /**
+     * Returns the size of everything cached, in bytes.
+     */
+    synchronized long weight() {
+        return windowWeight + mainWeight;
+    }
+
+    private Entry lookup(String key) {
+        Entry entry = window.get(key);
+        return (entry != null) ? entry : main.get(key);
+    }
+
+    private void remove(Entry entry) {
+        if (entry.inWindow) {
+            window.remove(entry.key);
+            windowWeight -= entry.weight();
+        } else {
+            main.remove(entry.key);
+            mainWeight -= entry.weight();
+        }
+    }
+
+    private void admit(Entry entry) {
+        Entry old = lookup(entry.key);
+        if (old != null)
+            remove(old);
+
+        window.put(entry.key, entry);
+        windowWeight += entry.weight();
+        Iterator<Entry> eldest = window.values().iterator();
+        while (windowWeight > windowCapacity) {
+            Entry candidate = eldest.next();
+            eldest.remove();
+            windowWeight -= candidate.weight();
+            promote(candidate);
+        }
+    }
+
+    /**
+     * Moves {@code candidate} from the window to the main LRU if it is
+     * requested more often than every entry it has to displace.
+     */
+    private void promote(Entry candidate) {
+        long weight = candidate.weight();
+        if (weight > mainCapacity) {
+            Metrics.INSTANCE.hotCacheEvictions.increment();
+            return;
+        }
+
+        // check every victim before evicting any, so a losing candidate leaves main as it was
+        int frequency = sketch.frequency(candidate.key);
+        long freed = 0;
+        int count = 0;
+        for (Entry victim : main.values()) {
+            if (mainWeight - freed + weight <= mainCapacity)
+                break;
+            if (sketch.frequency(victim.key) >= frequency) {
+                Metrics.INSTANCE.hotCacheEvictions.increment();
+                return;
+            }
+            freed += victim.weight();
+            count++;
+        }
+
+        Iterator<Entry> victims = main.values().iterator();
+        for (int i = 0; i < count; i++) {
+            Entry victim = victims.next();
+            victims.remove();
+            mainWeight -= victim.weight();
+            Metrics.INSTANCE.hotCacheEvictions.increment();
+        }
+        candidate.inWindow = false;
+        main.put(candidate.key, candidate);
+        mainWeight += weight;
+    }
+
+    /**
+     * Reads {@code file} into a direct buffer in its wire form, or returns
+     * null if it changed length while being read.
+     */
+    private static ByteBuffer load(File file, long length, Representation representation) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (raw.hasRemaining() && channel.read(raw) >= 0)
+                ;
+            if (raw.hasRemaining() || channel.size() != length)
+                return null;
+        }
+
+        byte wire[] = raw.array();
+        int wireLength = wire.length;
+        if (representation == Representation.ASCII) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(wire.length + wire.length / 16);
+            OutputStream out = new AsciiOutputStream(encoded);
+            out.write(wire);
+            out.close();
+            wire = encoded.toByteArray();
+            wireLength = wire.length;
+        }
+
+        ByteBuffer content = ByteBuffer.allocateDirect(wireLength);
+        content.put(wire, 0, wireLength).flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Count-min sketch of request frequencies with four 4-bit counters per
+     * key. All counters are halved once the number of increments reaches ten
+     * times the table size, so popularity fades over time.
+     */
+    private static final class FrequencySketch {
+        private static final long SEEDS[] = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long table[];
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int entries) {
+            table = new long[Integer.highestOneBit(entries - 1) << 1];
+            sampleSize = 10 * table.length;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int shift = counterShift(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> shift) & 15));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean isAdded = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                int shift = counterShift(hash, i);
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    isAdded = true;
+                }
+            }
+            if (isAdded && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        private static int counterShift(int hash, int i) {
+            return ((hash >>> (i << 3)) & 15) << 2;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
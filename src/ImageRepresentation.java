@@ -1,23 +1,25 @@
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 
 class ImageRepresentation extends Representation {
     ImageRepresentation() {
         super("binary", 'I');
     }
 
-    public InputStream getInputStream(Socket socket) throws IOException {
-        return socket.getInputStream();
+    public InputStream getInputStream(InputStream in) throws IOException {
+        return in;
     }
 
-    public OutputStream getOutputStream(Socket socket) throws IOException {
-        return socket.getOutputStream();
+    public OutputStream getOutputStream(OutputStream out) throws IOException {
+        return out;
     }
 
-    public long sizeOf(File file) throws IOException {
-        return file.length();
+    public long sizeOf(VirtualPath path) throws IOException {
+        return VirtualFileSystem.INSTANCE.attributes(path).size();
+    }
+
+    public long restartPosition(VirtualPath path, long offset) throws IOException {
+        return (offset >= 0 && offset <= sizeOf(path)) ? offset : -1;
     }
 }
@@ -0,0 +1,149 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared cache of rendered LIST, NLST and MLSD payloads, keyed by canonical
+ * directory path and bounded by total size (-Dftp.listing.cacheBytes),
+ * least recently used first. Cached directories are watched with a
+ * {@link WatchService}; any change in one drops its entries, as do the
+ * server's own MKD, RMD, DELE, STOR and APPE.
+ *
+ * <p>A directory is watched before it is read: {@link #watch} returns a
+ * token that {@link #put} only accepts if no invalidation came in between,
+ * so a listing rendered while the directory changed is never stored.
+ */
+class ListingCache implements Runnable {
+    static final char LIST = 'L';
+    static final char NLST = 'N';
+    static final char MLSD = 'M';
+
+    // larger listings are streamed without being kept
+    static final int MAX_PAYLOAD_SIZE = Integer.getInteger("ftp.listing.maxPayload", 1024 * 1024);
+
+    static final ListingCache INSTANCE = new ListingCache(Long.getLong("ftp.listing.cacheBytes", 64 * 1024 * 1024));
+
+    private final long capacity;
+    private long size = 0;
+    private final LinkedHashMap<String, byte[]> payloads = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, WatchKey> watches = new HashMap<>();
+    private WatchService watchService;
+
+    ListingCache(long capacity) {
+        this.capacity = capacity;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this, "ftp-listing-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            // without change notifications nothing can be cached safely
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+
+    synchronized byte[] get(String dir, char kind) {
+        return payloads.get(dir + kind);
+    }
+
+    /**
+     * Starts watching {@code dir} and returns the token to store its
+     * listings with, or null if it cannot be watched.
+     */
+    synchronized Object watch(String dir) {
+        if (watchService == null)
+            return null;
+
+        WatchKey key = watches.get(dir);
+        if (key == null) {
+            try {
+                key = Paths.get(dir).register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                return null;
+            }
+            watches.put(dir, key);
+        }
+        return key;
+    }
+
+    synchronized void put(String dir, char kind, byte payload[], Object token) {
+        if (token == null || watches.get(dir) != token || payload.length > capacity)
+            return;
+
+        byte old[] = payloads.put(dir + kind, payload);
+        if (old != null)
+            size -= old.length;
+        size += payload.length;
+
+        List<String> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, byte[]>> eldest = payloads.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            size -= entry.getValue().length;
+            eldest.remove();
+            String key = entry.getKey();
+            evicted.add(key.substring(0, key.length() - 1));
+        }
+        // a directory with nothing left in the cache need not hold an inotify watch
+        for (String evictedDir : evicted) {
+            if (!isCached(evictedDir))
+                unwatch(evictedDir);
+        }
+    }
+
+    private boolean isCached(String dir) {
+        return payloads.containsKey(dir + LIST) || payloads.containsKey(dir + NLST)
+                || payloads.containsKey(dir + MLSD);
+    }
+
+    private void unwatch(String dir) {
+        WatchKey key = watches.remove(dir);
+        if (key != null)
+            key.cancel();
+    }
+
+    /**
+     * Drops the cached listings of {@code dir}.
+     */
+    void invalidate(File dir) {
+        if (dir == null)
+            return;
+        try {
+            invalidate(dir.getCanonicalPath());
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+
+    private synchronized void invalidate(String dir) {
+        for (char kind : new char[] { LIST, NLST, MLSD }) {
+            byte old[] = payloads.remove(dir + kind);
+            if (old != null)
+                size -= old.length;
+        }
+        unwatch(dir);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                WatchKey key = watchService.take();
+                key.pollEvents();
+                invalidate(key.watchable().toString());
+                key.reset();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+}
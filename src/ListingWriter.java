@@ -0,0 +1,129 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Streams LIST, NLST and MLSD lines to a data channel in their ASCII wire
+ * form. Lines are encoded straight into one buffer that is written out
+ * whenever it fills, so rendering takes the same memory whatever the size of
+ * the directory. The output is also captured for the listing cache until it
+ * grows past {@code captureLimit}.
+ */
+final class ListingWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SIZE_WIDTH = 8;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd hh:mm").withZone(ZoneId.systemDefault());
+
+    // the time-val of RFC 3659, as used by MDTM and the modify fact
+    static final DateTimeFormatter TIME_VAL = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    private final int captureLimit;
+    private ByteArrayOutputStream capture = new ByteArrayOutputStream();
+
+    ListingWriter(WritableByteChannel out, int captureLimit) {
+        this.out = out;
+        this.captureLimit = captureLimit;
+    }
+
+    void writeTotal(int count) throws IOException {
+        putAscii("total ");
+        putAscii(Integer.toString(count));
+        putEol();
+    }
+
+    void writeName(String name) throws IOException {
+        putName(name);
+        putEol();
+    }
+
+    void writeEntry(String name, BasicFileAttributes attrs) throws IOException {
+        put(attrs.isDirectory() ? (byte) 'd' : (byte) '-');
+        putAscii("rwxrwxrwx   1 ftp      ftp      ");
+        String size = Long.toString(attrs.size());
+        for (int i = size.length(); i < SIZE_WIDTH; i++)
+            put((byte) ' ');
+        putAscii(size);
+        put((byte) ' ');
+        putName(DATE_FORMAT.format(attrs.lastModifiedTime().toInstant()));
+        put((byte) ' ');
+        putName(name);
+        putEol();
+    }
+
+    void writeFacts(String name, BasicFileAttributes attrs) throws IOException {
+        putAscii(facts(attrs));
+        put((byte) ' ');
+        putName(name);
+        putEol();
+    }
+
+    /**
+     * Returns the RFC 3659 facts line for a file, without its name.
+     */
+    static String facts(BasicFileAttributes attrs) {
+        return "type=" + (attrs.isDirectory() ? "dir" : "file")
+                + ";size=" + attrs.size()
+                + ";modify=" + TIME_VAL.format(attrs.lastModifiedTime().toInstant()) + ";";
+    }
+
+    /**
+     * Writes out what is buffered.
+     */
+    void flush() throws IOException {
+        buf.flip();
+        if (capture != null) {
+            if (capture.size() + buf.remaining() > captureLimit)
+                capture = null;
+            else
+                capture.write(buf.array(), 0, buf.limit());
+        }
+        while (buf.hasRemaining())
+            out.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * Returns everything written so far, or null if it outgrew the
+     * capture limit.
+     */
+    byte[] captured() {
+        return capture != null ? capture.toByteArray() : null;
+    }
+
+    private void putEol() throws IOException {
+        put(AsciiCodec.CR);
+        put(AsciiCodec.LF);
+    }
+
+    private void putName(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                for (byte b : s.getBytes(CHARSET))
+                    put(b);
+                return;
+            }
+        }
+        putAscii(s);
+    }
+
+    private void putAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            put((byte) s.charAt(i));
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buf.hasRemaining())
+            flush();
+        buf.put(b);
+    }
+}
@@ -0,0 +1,581 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The served tree held in the heap, for serving a hot tree from RAM and for
+ * measuring transfers without disk noise. Directories are sorted maps of
+ * their entries and files are byte arrays of up to 2GB, read and written
+ * through a {@link FileChannel} of their own. The shape of the tree is
+ * guarded by one read-write lock and the content of each file by the file
+ * itself, so transfers of different files never contend.
+ *
+ * <p>-Dftp.vfs.memory.bytes bounds the content of all files together (half
+ * the maximum heap); a write past it fails with an IOException instead of
+ * running the server out of memory.
+ */
+final class MemoryFileSystem extends VirtualFileSystem {
+    private static final int MAX_FILE_SIZE = Integer.MAX_VALUE - 8;
+    private static final long CAPACITY = Long.getLong("ftp.vfs.memory.bytes", Runtime.getRuntime().maxMemory() / 2);
+    private static final byte EMPTY[] = new byte[0];
+
+    /**
+     * The bytes all file contents may take, counted by allocated capacity.
+     */
+    private static final class Quota {
+        private final long capacity;
+        private final AtomicLong used = new AtomicLong();
+
+        Quota(long capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean tryReserve(long bytes) {
+            long current;
+            do {
+                current = used.get();
+                if (current + bytes > capacity)
+                    return false;
+            } while (!used.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        void release(long bytes) {
+            used.addAndGet(-bytes);
+        }
+    }
+
+    private static final class Node {
+        final boolean isDirectory;
+        final TreeMap<String, Node> entries;
+        final long created = System.currentTimeMillis();
+        private final Quota quota;
+        // the content of a file, guarded by the node
+        byte data[] = EMPTY;
+        int length = 0;
+        volatile long lastModified = created;
+        // open channels; the content of a deleted file is freed once the last one closes
+        private int channels = 0;
+        private boolean isUnlinked = false;
+
+        Node(boolean isDirectory, Quota quota) {
+            this.isDirectory = isDirectory;
+            this.entries = isDirectory ? new TreeMap<>() : null;
+            this.quota = quota;
+        }
+
+        /**
+         * Makes room for {@code size} bytes within the quota; the caller
+         * holds the node.
+         */
+        void ensureCapacity(long size) throws IOException {
+            if (size > MAX_FILE_SIZE)
+                throw new IOException("File too large for memory");
+            if (size <= data.length)
+                return;
+            long grown = Math.min(MAX_FILE_SIZE, Math.max(size, 2L * data.length));
+            // near the limit, grow by just what the write needs
+            if (!quota.tryReserve(grown - data.length)) {
+                grown = size;
+                if (!quota.tryReserve(grown - data.length))
+                    throw new IOException("Memory file system full: " + quota.capacity + " bytes");
+            }
+            data = Arrays.copyOf(data, (int) grown);
+        }
+
+        /**
+         * Drops the content; the caller holds the node.
+         */
+        void clear() {
+            quota.release(data.length);
+            data = EMPTY;
+            length = 0;
+        }
+
+        synchronized void opened() {
+            channels++;
+        }
+
+        synchronized void closed() {
+            if (--channels == 0 && isUnlinked)
+                clear();
+        }
+
+        synchronized void unlink() {
+            isUnlinked = true;
+            if (channels == 0)
+                clear();
+        }
+
+        BasicFileAttributes attributes() {
+            long size;
+            synchronized (this) {
+                size = length;
+            }
+            return new Attributes(isDirectory, size, lastModified, created);
+        }
+    }
+
+    private static final class Attributes implements BasicFileAttributes {
+        private final boolean isDirectory;
+        private final long size;
+        private final FileTime lastModified;
+        private final FileTime created;
+
+        Attributes(boolean isDirectory, long size, long lastModified, long created) {
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.lastModified = FileTime.fromMillis(lastModified);
+            this.created = FileTime.fromMillis(created);
+        }
+
+        public FileTime lastModifiedTime() {
+            return lastModified;
+        }
+
+        public FileTime lastAccessTime() {
+            return lastModified;
+        }
+
+        public FileTime creationTime() {
+            return created;
+        }
+
+        public boolean isRegularFile() {
+            return !isDirectory;
+        }
+
+        public boolean isDirectory() {
+            return isDirectory;
+        }
+
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        public boolean isOther() {
+            return false;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    private final Quota quota = new Quota(CAPACITY);
+    private final Node root = new Node(true, quota);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Copies the directory tree under {@code dir} into the root, keeping
+     * modification times.
+     */
+    void copyFrom(File dir) throws IOException {
+        Path start = dir.toPath();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                VirtualPath target = toVirtualPath(start.relativize(path));
+                if (!target.isRoot() && !exists(target))
+                    createDirectory(target);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile())
+                    return FileVisitResult.CONTINUE;
+                VirtualPath target = toVirtualPath(start.relativize(path));
+                try (FileChannel out = open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    out.write(ByteBuffer.wrap(Files.readAllBytes(path)));
+                }
+                lookup(target).lastModified = attrs.lastModifiedTime().toMillis();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static VirtualPath toVirtualPath(Path relative) {
+        VirtualPath path = VirtualPath.ROOT;
+        for (Path name : relative) {
+            if (!name.toString().isEmpty())
+                path = path.child(name.toString());
+        }
+        return path;
+    }
+
+    BasicFileAttributes attributes(VirtualPath path) throws IOException {
+        return existing(path).attributes();
+    }
+
+    DirectoryStream<VirtualPath> newDirectoryStream(VirtualPath dir,
+            DirectoryStream.Filter<? super VirtualPath> filter) throws IOException {
+        List<VirtualPath> entries;
+        lock.readLock().lock();
+        try {
+            Node node = existing(dir);
+            if (!node.isDirectory)
+                throw new NotDirectoryException(dir.toString());
+            entries = new ArrayList<>(node.entries.size());
+            for (String name : node.entries.keySet())
+                entries.add(dir.entry(name));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return newDirectoryStream(entries.iterator(), filter, null);
+    }
+
+    void createDirectory(VirtualPath dir) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Node parent = parentOf(dir);
+            if (dir.isRoot() || parent.entries.containsKey(dir.getName()))
+                throw new FileAlreadyExistsException(dir.toString());
+            parent.entries.put(dir.getName(), new Node(true, quota));
+            parent.lastModified = System.currentTimeMillis();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void delete(VirtualPath path) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Node node = existing(path);
+            if (path.isRoot())
+                throw new AccessDeniedException(path.toString());
+            if (node.isDirectory && !node.entries.isEmpty())
+                throw new DirectoryNotEmptyException(path.toString());
+            Node parent = lookup(path.getParent());
+            parent.entries.remove(path.getName());
+            parent.lastModified = System.currentTimeMillis();
+            if (!node.isDirectory)
+                node.unlink();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    FileChannel open(VirtualPath path, OpenOption... options) throws IOException {
+        Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+        boolean isAppend = set.contains(StandardOpenOption.APPEND);
+        boolean isWritable = isAppend || set.contains(StandardOpenOption.WRITE);
+        boolean isReadable = set.contains(StandardOpenOption.READ) || !isWritable;
+
+        Node node;
+        lock.writeLock().lock();
+        try {
+            node = lookup(path);
+            if (node == null) {
+                if (!isWritable || !(set.contains(StandardOpenOption.CREATE)
+                        || set.contains(StandardOpenOption.CREATE_NEW)))
+                    throw new NoSuchFileException(path.toString());
+                Node parent = parentOf(path);
+                node = new Node(false, quota);
+                parent.entries.put(path.getName(), node);
+                parent.lastModified = System.currentTimeMillis();
+            } else if (isWritable && set.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new FileAlreadyExistsException(path.toString());
+            } else if (node.isDirectory) {
+                throw new FileSystemException(path.toString() + ": is a directory");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (isWritable && set.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            synchronized (node) {
+                node.clear();
+                node.lastModified = System.currentTimeMillis();
+            }
+        }
+        return new MemoryFileChannel(node, isReadable, isWritable, isAppend);
+    }
+
+    void move(VirtualPath source, VirtualPath target) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Node node = existing(source);
+            Node parent = parentOf(target);
+            if (parent.entries.containsKey(target.getName()))
+                throw new FileAlreadyExistsException(target.toString());
+            Node sourceParent = lookup(source.getParent());
+            sourceParent.entries.remove(source.getName());
+            parent.entries.put(target.getName(), node);
+            long now = System.currentTimeMillis();
+            sourceParent.lastModified = now;
+            parent.lastModified = now;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void forceDirectory(VirtualPath dir) {
+        // nothing outlives the process anyway
+    }
+
+    ByteBuffer map(VirtualPath path, long position, long size) throws IOException {
+        Node node = existing(path);
+        synchronized (node) {
+            if (position < 0 || size < 0 || position + size > node.length)
+                throw new IOException("Range outside of file: " + position + "+" + size);
+            return ByteBuffer.wrap(node.data, (int) position, (int) size).slice().asReadOnlyBuffer();
+        }
+    }
+
+    String key(VirtualPath path) {
+        return "memory:" + path;
+    }
+
+    private Node existing(VirtualPath path) throws IOException {
+        Node node = lookup(path);
+        if (node == null)
+            throw new NoSuchFileException(path.toString());
+        return node;
+    }
+
+    /**
+     * Returns the directory {@code path} goes into, which must exist.
+     */
+    private Node parentOf(VirtualPath path) throws IOException {
+        Node parent = lookup(path.getParent());
+        if (parent == null)
+            throw new NoSuchFileException(path.getParent().toString());
+        if (!parent.isDirectory)
+            throw new NotDirectoryException(path.getParent().toString());
+        return parent;
+    }
+
+    private Node lookup(VirtualPath path) {
+        if (path.isRoot())
+            return root;
+        lock.readLock().lock();
+        try {
+            Node parent = lookup(path.getParent());
+            return (parent != null && parent.isDirectory) ? parent.entries.get(path.getName()) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A channel on one memory file. Positional reads and writes hold the
+     * file only while copying, and transferTo hands the target a view of
+     * the content instead of a copy.
+     */
+    private static final class MemoryFileChannel extends FileChannel {
+        private final Node node;
+        private final boolean isReadable;
+        private final boolean isWritable;
+        private final boolean isAppend;
+        private long position = 0;
+
+        MemoryFileChannel(Node node, boolean isReadable, boolean isWritable, boolean isAppend) {
+            this.node = node;
+            this.isReadable = isReadable;
+            this.isWritable = isWritable;
+            this.isAppend = isAppend;
+            node.opened();
+        }
+
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            int n = read(dst, position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        public synchronized long read(ByteBuffer dsts[], int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int n = read(dsts[i]);
+                if (n < 0)
+                    return (total == 0) ? -1 : total;
+                total += n;
+                if (dsts[i].hasRemaining())
+                    break;
+            }
+            return total;
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            checkReadable();
+            synchronized (node) {
+                if (position >= node.length)
+                    return -1;
+                int n = (int) Math.min(dst.remaining(), node.length - position);
+                dst.put(node.data, (int) position, n);
+                return n;
+            }
+        }
+
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if (isAppend) {
+                synchronized (node) {
+                    position = node.length;
+                    return advance(write(src, position));
+                }
+            }
+            return advance(write(src, position));
+        }
+
+        private int advance(int n) {
+            position += n;
+            return n;
+        }
+
+        public synchronized long write(ByteBuffer srcs[], int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++)
+                total += write(srcs[i]);
+            return total;
+        }
+
+        public int write(ByteBuffer src, long position) throws IOException {
+            checkWritable();
+            int n = src.remaining();
+            synchronized (node) {
+                long end = position + n;
+                node.ensureCapacity(end);
+                // bytes past the old end may be left over from a truncation
+                if (position > node.length)
+                    Arrays.fill(node.data, node.length, (int) position, (byte) 0);
+                src.get(node.data, (int) position, n);
+                node.length = (int) Math.max(node.length, end);
+                node.lastModified = System.currentTimeMillis();
+            }
+            return n;
+        }
+
+        public synchronized long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        public synchronized FileChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if (newPosition < 0)
+                throw new IllegalArgumentException();
+            position = newPosition;
+            return this;
+        }
+
+        public long size() throws IOException {
+            checkOpen();
+            synchronized (node) {
+                return node.length;
+            }
+        }
+
+        public synchronized FileChannel truncate(long size) throws IOException {
+            checkWritable();
+            if (size < 0)
+                throw new IllegalArgumentException();
+            synchronized (node) {
+                if (size < node.length) {
+                    node.length = (int) size;
+                    node.lastModified = System.currentTimeMillis();
+                }
+            }
+            if (position > size)
+                position = size;
+            return this;
+        }
+
+        public void force(boolean metaData) throws IOException {
+            checkOpen();
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            checkReadable();
+            ByteBuffer view;
+            synchronized (node) {
+                if (position >= node.length)
+                    return 0;
+                view = ByteBuffer.wrap(node.data, (int) position, (int) Math.min(count, node.length - position));
+            }
+            return target.write(view);
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            checkWritable();
+            if (position > size())
+                return 0;
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+            long total = 0;
+            while (total < count) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), count - total));
+                int n = src.read(buf);
+                if (n <= 0)
+                    break;
+                buf.flip();
+                write(buf, position + total);
+                total += n;
+            }
+            return total;
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            throw new IOException("Memory files cannot be mapped as MappedByteBuffers; use VirtualFileSystem.map");
+        }
+
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            checkOpen();
+            return new FileLock(this, position, size, shared) {
+                private boolean isValid = true;
+
+                public boolean isValid() {
+                    return isValid && channel().isOpen();
+                }
+
+                public void release() {
+                    isValid = false;
+                }
+            };
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return lock(position, size, shared);
+        }
+
+        protected void implCloseChannel() {
+            node.closed();
+        }
+
+        private void checkOpen() throws IOException {
+            if (!isOpen())
+                throw new ClosedChannelException();
+        }
+
+        private void checkReadable() throws IOException {
+            checkOpen();
+            if (!isReadable)
+                throw new NonReadableChannelException();
+        }
+
+        private void checkWritable() throws IOException {
+            checkOpen();
+            if (!isWritable)
+                throw new NonWritableChannelException();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms. Everything the sessions
+ * update is created up front or once per verb, so updates are plain
+ * striped adds and never allocate.
+ *
+ * <p>The values are served in the Prometheus text format on
+ * http://127.0.0.1:-Dftp.metrics.port/metrics (9888; negative disables).
+ */
+class Metrics {
+    private static final int METRICS_PORT = Integer.getInteger("ftp.metrics.port", 9888);
+    private static final double QUANTILES[] = { 0.5, 0.9, 0.99, 0.999 };
+
+    static final Metrics INSTANCE = new Metrics();
+
+    final LongAdder sessionsTotal = new LongAdder();
+    final LongAdder sessionsActive = new LongAdder();
+    final LongAdder dataConnectionsActive = new LongAdder();
+    final LongAdder unknownCommands = new LongAdder();
+    final LongAdder logDropped = new LongAdder();
+    final LongAdder hotCacheHits = new LongAdder();
+    final LongAdder hotCacheMisses = new LongAdder();
+    final LongAdder hotCacheEvictions = new LongAdder();
+    final LongAdder commitBatches = new LongAdder();
+    final LongAdder commitFiles = new LongAdder();
+    final Histogram transferThroughput = new Histogram();
+
+    private final LongAdder replies[] = new LongAdder[600];
+    private final LongAdder bytesSent[] = new LongAdder[128];
+    private final LongAdder bytesReceived[] = new LongAdder[128];
+    private final Map<String, Histogram> commandLatency = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+        for (int i = 0; i < replies.length; i++)
+            replies[i] = new LongAdder();
+        for (int i = 0; i < bytesSent.length; i++) {
+            bytesSent[i] = new LongAdder();
+            bytesReceived[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the latency histogram of {@code verb}, in nanoseconds.
+     */
+    Histogram commandLatency(String verb) {
+        return commandLatency.computeIfAbsent(verb, v -> new Histogram());
+    }
+
+    void reply(int code) {
+        if (code >= 0 && code < replies.length)
+            replies[code].increment();
+    }
+
+    LongAdder bytesSent(Representation representation) {
+        return bytesSent[representation.getCode() & 0x7f];
+    }
+
+    LongAdder bytesReceived(Representation representation) {
+        return bytesReceived[representation.getCode() & 0x7f];
+    }
+
+    /**
+     * Records one finished transfer of {@code bytes} that took {@code nanos}.
+     */
+    void transfer(long bytes, long nanos) {
+        if (bytes > 0 && nanos > 0)
+            transferThroughput.record((long) (bytes * 1e9 / nanos));
+    }
+
+    /**
+     * Starts the scrape endpoint on the loopback interface.
+     */
+    void start() {
+        if (METRICS_PORT < 0)
+            return;
+        try {
+            HttpServer server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte body[] = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(null);
+            server.start();
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error("Metrics endpoint unavailable", e);
+        }
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "ftp_sessions_active", sessionsActive.sum());
+        counter(out, "ftp_sessions_total", sessionsTotal.sum());
+        gauge(out, "ftp_data_connections_active", dataConnectionsActive.sum());
+        counter(out, "ftp_unknown_commands_total", unknownCommands.sum());
+        counter(out, "ftp_log_dropped_total", logDropped.sum());
+        counter(out, "ftp_hotcache_hits_total", hotCacheHits.sum());
+        counter(out, "ftp_hotcache_misses_total", hotCacheMisses.sum());
+        counter(out, "ftp_hotcache_evictions_total", hotCacheEvictions.sum());
+        gauge(out, "ftp_hotcache_bytes", HotFileCache.INSTANCE.weight());
+        counter(out, "ftp_commit_batches_total", commitBatches.sum());
+        counter(out, "ftp_commit_files_total", commitFiles.sum());
+
+        out.append("# TYPE ftp_replies_total counter\n");
+        for (int code = 0; code < replies.length; code++) {
+            long n = replies[code].sum();
+            if (n > 0)
+                out.append("ftp_replies_total{code=\"").append(code).append("\"} ").append(n).append('\n');
+        }
+
+        out.append("# TYPE ftp_bytes_total counter\n");
+        for (int code = 0; code < bytesSent.length; code++) {
+            bytes(out, "out", code, bytesSent[code].sum());
+            bytes(out, "in", code, bytesReceived[code].sum());
+        }
+
+        out.append("# TYPE ftp_command_duration_seconds summary\n");
+        for (Map.Entry<String, Histogram> entry : commandLatency.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getCount() == 0)
+                continue;
+            String labels = "command=\"" + entry.getKey() + "\"";
+            for (double q : QUANTILES) {
+                out.append("ftp_command_duration_seconds{").append(labels).append(",quantile=\"").append(q)
+                        .append("\"} ").append(histogram.quantile(q) / 1e9).append('\n');
+            }
+            out.append("ftp_command_duration_seconds_sum{").append(labels).append("} ")
+                    .append(histogram.getSum() / 1e9).append('\n');
+            out.append("ftp_command_duration_seconds_count{").append(labels).append("} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+
+        out.append("# TYPE ftp_transfer_throughput_bytes_per_second summary\n");
+        for (double q : QUANTILES) {
+            out.append("ftp_transfer_throughput_bytes_per_second{quantile=\"").append(q).append("\"} ")
+                    .append(transferThroughput.quantile(q)).append('\n');
+        }
+        out.append("ftp_transfer_throughput_bytes_per_second_sum ").append(transferThroughput.getSum()).append('\n');
+        out.append("ftp_transfer_throughput_bytes_per_second_count ").append(transferThroughput.getCount()).append('\n');
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void bytes(StringBuilder out, String direction, int code, long value) {
+        if (value == 0)
+            return;
+        out.append("ftp_bytes_total{direction=\"").append(direction).append("\",type=\"").append((char) code)
+                .append("\"} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+/**
+ * The served tree as a directory on disk, reached through NIO. The
+ * {@link File} behind a path is built once and kept on the interned path.
+ * The {@link StateDirectory}, should it be inside the tree, does not exist
+ * as far as sessions can tell.
+ */
+final class NativeFileSystem extends VirtualFileSystem {
+    private final File root;
+    // where the state directory is in the tree, or null if it is elsewhere
+    private final VirtualPath state;
+
+    NativeFileSystem(File root) {
+        this.root = root;
+        this.state = find(root, StateDirectory.INSTANCE.getDirectory());
+        if (state != null)
+            ServerLog.INSTANCE.error("state directory " + StateDirectory.INSTANCE.getDirectory()
+                    + " is inside the served tree " + root + "; set -Dftp.state.dir outside it", null);
+    }
+
+    /**
+     * Returns the path of {@code dir} in the tree at {@code root}, both
+     * resolved through symbolic links, or null if it is not in the tree.
+     */
+    private static VirtualPath find(File root, File dir) {
+        try {
+            Path base = root.getCanonicalFile().toPath();
+            Path path = dir.getCanonicalFile().toPath();
+            if (!path.startsWith(base))
+                return null;
+            return VirtualPath.ROOT.resolve(base.relativize(path).toString().replace(File.separatorChar, '/'));
+        } catch (IOException | InvalidPathException e) {
+            ServerLog.INSTANCE.error(e);
+            return null;
+        }
+    }
+
+    private boolean isState(VirtualPath path) {
+        if (state == null)
+            return false;
+        for (VirtualPath p = path; ; p = p.getParent()) {
+            if (p.equals(state))
+                return true;
+            if (p.isRoot())
+                return false;
+        }
+    }
+
+    @Override
+    File toFile(VirtualPath path) {
+        Object resolved = path.resolved;
+        if (resolved instanceof File)
+            return (File) resolved;
+
+        if (isState(path))
+            return null;
+        File file = path.isRoot() ? root : new File(root, path.toString().substring(1));
+        path.resolved = file;
+        return file;
+    }
+
+    private Path toPath(VirtualPath path) throws IOException {
+        File file = toFile(path);
+        if (file == null)
+            throw new NoSuchFileException(path.toString());
+        try {
+            return file.toPath();
+        } catch (InvalidPathException e) {
+            // a name the platform cannot encode cannot exist either
+            throw new NoSuchFileException(path.toString(), null, e.getReason());
+        }
+    }
+
+    BasicFileAttributes attributes(VirtualPath path) throws IOException {
+        return Files.readAttributes(toPath(path), BasicFileAttributes.class);
+    }
+
+    DirectoryStream<VirtualPath> newDirectoryStream(VirtualPath dir,
+            DirectoryStream.Filter<? super VirtualPath> filter) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(toPath(dir));
+        Iterator<Path> names = entries.iterator();
+        Iterator<VirtualPath> paths = new Iterator<VirtualPath>() {
+            public boolean hasNext() {
+                return names.hasNext();
+            }
+
+            public VirtualPath next() {
+                return dir.entry(names.next().getFileName().toString());
+            }
+        };
+        if (state == null)
+            return newDirectoryStream(paths, filter, entries);
+        return newDirectoryStream(paths, entry -> !entry.equals(state) && filter.accept(entry), entries);
+    }
+
+    void createDirectory(VirtualPath dir) throws IOException {
+        Files.createDirectory(toPath(dir));
+    }
+
+    void delete(VirtualPath path) throws IOException {
+        Files.delete(toPath(path));
+    }
+
+    FileChannel open(VirtualPath path, OpenOption... options) throws IOException {
+        return FileChannel.open(toPath(path), options);
+    }
+
+    void move(VirtualPath source, VirtualPath target) throws IOException {
+        Path from = toPath(source);
+        Path to = toPath(target);
+        // a rename replaces the target; a new link fails if it exists, with no window in between
+        try {
+            Files.createLink(to, from);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // no hard links here (FAT, some network mounts, a denied link): a move that checks the target first
+            Files.move(from, to);
+            return;
+        }
+        try {
+            Files.delete(from);
+        } catch (IOException e) {
+            // the file is in place; a staging name left behind is swept at the next start
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+
+    void forceDirectory(VirtualPath dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(toPath(dir), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // some platforms, Windows among them, cannot open a directory, so there is nothing to sync
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    ByteBuffer map(VirtualPath path, long position, long size) throws IOException {
+        // a mapping stays valid after its channel is closed
+        try (FileChannel channel = FileChannel.open(toPath(path), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
+    String key(VirtualPath path) throws IOException {
+        return toPath(path).toFile().getCanonicalPath();
+    }
+}
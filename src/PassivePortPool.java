@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Server-wide pool of listening ports for passive data connections, bound
+ * once in the range -Dftp.pasv.minPort..-Dftp.pasv.maxPort. A session
+ * leases a port for a single connection; one acceptor thread takes the
+ * connection, hands it to the lease and puts the port straight back on
+ * the free list, so a small range serves any number of transfers.
+ */
+class PassivePortPool implements Runnable {
+    private static final long ACCEPT_TIMEOUT = Long.getLong("ftp.pasv.timeout", 30000);
+
+    static final PassivePortPool INSTANCE = new PassivePortPool(
+            Integer.getInteger("ftp.pasv.minPort", 50000),
+            Integer.getInteger("ftp.pasv.maxPort", 50099));
+
+    private static class PassivePort {
+        final ServerSocketChannel channel;
+        final int port;
+        volatile Lease lease;
+
+        PassivePort(ServerSocketChannel channel, int port) {
+            this.channel = channel;
+            this.port = port;
+        }
+    }
+
+    /**
+     * One pending passive connection. It is completed by the acceptor or
+     * cancelled, whichever comes first, and only the winner frees the port.
+     */
+    class Lease {
+        private final PassivePort port;
+        private final InetAddress peer;
+        private final CompletableFuture<SocketChannel> connection = new CompletableFuture<>();
+
+        Lease(PassivePort port, InetAddress peer) {
+            this.port = port;
+            this.peer = peer;
+        }
+
+        int getPort() {
+            return port.port;
+        }
+
+        SocketChannel accept() throws IOException {
+            try {
+                return connection.get(ACCEPT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                cancel();
+                throw new ConnectException("No passive connection within " + ACCEPT_TIMEOUT + " ms.");
+            } catch (ExecutionException e) {
+                throw new ConnectException("Passive connection cancelled.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new ConnectException("Interrupted.");
+            }
+        }
+
+        void cancel() {
+            if (connection.completeExceptionally(new ClosedChannelException())) {
+                release(this);
+                return;
+            }
+            SocketChannel channel = connection.getNow(null);
+            if (channel != null)
+                closeQuietly(channel);
+        }
+
+        private boolean offer(SocketChannel channel) throws IOException {
+            if (!peer.equals(channel.socket().getInetAddress()))
+                return false;
+            if (!connection.complete(channel))
+                return false;
+            release(this);
+            return true;
+        }
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<PassivePort> free = new ConcurrentLinkedQueue<>();
+
+    PassivePortPool(int minPort, int maxPort) {
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            for (int port = minPort; port <= maxPort; port++) {
+                try {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channel.bind(new InetSocketAddress(port));
+                    channel.configureBlocking(false);
+                    PassivePort passivePort = new PassivePort(channel, port);
+                    channel.register(selector, SelectionKey.OP_ACCEPT, passivePort);
+                    free.add(passivePort);
+                } catch (IOException e) {
+                    ServerLog.INSTANCE.warn("Passive port " + port + " unavailable: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+        this.selector = selector;
+
+        if (selector != null) {
+            Thread acceptor = new Thread(this, "ftp-pasv-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Leases a free port for one connection from {@code peer}, or returns
+     * null if every port is in use.
+     */
+    Lease lease(InetAddress peer) {
+        PassivePort port = free.poll();
+        if (port == null)
+            return null;
+
+        Lease lease = new Lease(port, peer);
+        port.lease = lease;
+        return lease;
+    }
+
+    private void release(Lease lease) {
+        PassivePort port = lease.port;
+        port.lease = null;
+        free.add(port);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    PassivePort port = (PassivePort) key.attachment();
+                    SocketChannel channel;
+                    while ((channel = port.channel.accept()) != null) {
+                        Lease lease = port.lease;
+                        if (lease == null || !lease.offer(channel))
+                            closeQuietly(channel);
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encodes control connection replies into one direct buffer per session and
+ * writes them out on {@link #flush} only, so a batch of replies costs a
+ * single write. Reply codes and {@link Fixed} replies are encoded once up
+ * front; other text is encoded into the buffer as it is written, without a
+ * String or encoder in between while it is ASCII. Lines end in CRLF.
+ *
+ * <p>Like the {@code PrintWriter} it replaces, the writer does not throw: once
+ * a write fails, the connection is gone and later replies are dropped, which
+ * the session notices on its next read.
+ *
+ * <p>ABOR and STAT may reply from another thread than the session's. Writers
+ * take a {@link ReentrantLock} rather than the monitor, so a flush blocked
+ * on the socket does not pin the carrier of a virtual thread.
+ */
+final class ReplyWriter {
+    private static final int BUFFER_SIZE = 4096;
+    private static final int SCRATCH_SIZE = 256;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte EOL[] = { AsciiCodec.CR, AsciiCodec.LF };
+
+    // "NNN " and "NNN-" for every valid code
+    private static final byte FINAL[][] = new byte[600][];
+    private static final byte CONTINUED[][] = new byte[600][];
+
+    static {
+        for (int code = 100; code < FINAL.length; code++) {
+            FINAL[code] = (code + " ").getBytes(CHARSET);
+            CONTINUED[code] = (code + "-").getBytes(CHARSET);
+        }
+    }
+
+    /**
+     * A reply with fixed text, encoded once with its code and line end.
+     */
+    static final class Fixed {
+        final int code;
+        private final byte bytes[];
+
+        Fixed(int code, String text) {
+            this.code = code;
+            this.bytes = (code + " " + text + "\r\n").getBytes(CHARSET);
+        }
+    }
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // ASCII text is gathered here and copied into the direct buffer in bulk
+    private final byte scratch[] = new byte[SCRATCH_SIZE];
+    private CharsetEncoder encoder;
+    private boolean isBroken = false;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    ReplyWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    void write(Fixed reply) {
+        lock.lock();
+        try {
+            put(reply.bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void write(int code, String text) {
+        lock.lock();
+        try {
+            putCode(code, false);
+            putText(text);
+            put(EOL);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a reply whose text is {@code before}, {@code arg} and
+     * {@code after}, without joining them first.
+     */
+    void write(int code, String before, String arg, String after) {
+        lock.lock();
+        try {
+            putCode(code, false);
+            putText(before);
+            putText(arg);
+            putText(after);
+            put(EOL);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a multi-line reply: {@code first}, then each of {@code lines}
+     * indented by a space, then {@code last} on the closing line.
+     */
+    void write(int code, String first, String lines[], String last) {
+        lock.lock();
+        try {
+            putCode(code, true);
+            putText(first);
+            put(EOL);
+            for (String line : lines) {
+                put((byte) ' ');
+                putText(line);
+                put(EOL);
+            }
+            write(code, last);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out what is buffered.
+     */
+    void flush() {
+        lock.lock();
+        try {
+            buf.flip();
+            while (buf.hasRemaining() && !isBroken)
+                out.write(buf);
+        } catch (IOException e) {
+            isBroken = true;
+        } finally {
+            buf.clear();
+            lock.unlock();
+        }
+    }
+
+    private void putCode(int code, boolean isContinued) {
+        if (code >= 100 && code < FINAL.length)
+            put(isContinued ? CONTINUED[code] : FINAL[code]);
+        else
+            putText(code + (isContinued ? "-" : " "));
+    }
+
+    private void putText(String s) {
+        int length = s.length();
+        for (int start = 0; start < length; start += SCRATCH_SIZE) {
+            int end = Math.min(length, start + SCRATCH_SIZE);
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c > 0x7f) {
+                    put(scratch, i - start);
+                    encode(s, i);
+                    return;
+                }
+                scratch[i - start] = (byte) c;
+            }
+            put(scratch, end - start);
+        }
+    }
+
+    private void encode(String s, int start) {
+        if (encoder == null) {
+            encoder = CHARSET.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(s, start, s.length());
+        while (encoder.encode(chars, buf, true) == CoderResult.OVERFLOW)
+            flush();
+        while (encoder.flush(buf) == CoderResult.OVERFLOW)
+            flush();
+    }
+
+    private void put(byte bytes[]) {
+        put(bytes, bytes.length);
+    }
+
+    private void put(byte bytes[], int length) {
+        if (buf.remaining() < length)
+            flush();
+        if (length > buf.capacity()) {
+            for (int i = 0; i < length; i++)
+                put(bytes[i]);
+            return;
+        }
+        buf.put(bytes, 0, length);
+    }
+
+    private void put(byte b) {
+        if (!buf.hasRemaining())
+            flush();
+        buf.put(b);
+    }
+}
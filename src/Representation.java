@@ -1,13 +1,12 @@
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 abstract class Representation {
 
-    private static Hashtable<Character, Representation> representations = new Hashtable<>();
+    private static Map<Character, Representation> representations = new ConcurrentHashMap<>();
 
     public static final Representation ASCII = new AsciiRepresentation();
     public static final Representation IMAGE = new ImageRepresentation();
@@ -18,10 +17,12 @@ abstract class Representation {
 
     private String name;
     private char code;
+    private final ReplyWriter.Fixed openingReply;
 
     Representation(String name, char code) {
         this.name = name;
         this.code = code;
+        this.openingReply = new ReplyWriter.Fixed(150, "Opening " + name + " mode data connection.");
 
         representations.put(code, this);
     }
@@ -34,9 +35,39 @@ abstract class Representation {
         return code;
     }
 
-    public abstract InputStream getInputStream(Socket socket) throws IOException;
+    /**
+     * Returns the 150 reply that opens a transfer in this representation.
+     */
+    final ReplyWriter.Fixed getOpeningReply() {
+        return openingReply;
+    }
+
+    /**
+     * Returns a stream that reads {@code in}, which is in the wire form, in
+     * the local form.
+     */
+    public abstract InputStream getInputStream(InputStream in) throws IOException;
+
+    /**
+     * Returns a stream that writes local data to {@code out} in the wire form.
+     */
+    public abstract OutputStream getOutputStream(OutputStream out) throws IOException;
+
+    /**
+     * Returns a stream like {@link #getOutputStream(OutputStream)} for data
+     * that continues a file at a restart position; {@code afterCr} tells
+     * whether the byte before that position was a CR.
+     */
+    public OutputStream getOutputStream(OutputStream out, boolean afterCr) throws IOException {
+        return getOutputStream(out);
+    }
 
-    public abstract OutputStream getOutputStream(Socket socket) throws IOException;
+    public abstract long sizeOf(VirtualPath path) throws IOException;
 
-    public abstract long sizeOf(File file) throws IOException;
+    /**
+     * Returns the position in file {@code path} that corresponds to
+     * {@code offset} bytes of this representation, or -1 if no transfer can
+     * restart there.
+     */
+    public abstract long restartPosition(VirtualPath path, long offset) throws IOException;
 }
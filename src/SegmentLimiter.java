@@ -0,0 +1,48 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the number of downloads running in parallel, server-wide
+ * (-Dftp.segments.global) and per client host (-Dftp.segments.perClient),
+ * since a segmented client opens one session per segment.
+ */
+class SegmentLimiter {
+    static final SegmentLimiter INSTANCE = new SegmentLimiter(
+            Integer.getInteger("ftp.segments.global", 512),
+            Integer.getInteger("ftp.segments.perClient", 16));
+
+    private final int globalLimit;
+    private final int clientLimit;
+    private final AtomicInteger global = new AtomicInteger();
+    // downloads per client; a client leaves the map when its count drops to 0
+    private final ConcurrentHashMap<InetAddress, Integer> clients = new ConcurrentHashMap<>();
+
+    SegmentLimiter(int globalLimit, int clientLimit) {
+        this.globalLimit = globalLimit;
+        this.clientLimit = clientLimit;
+    }
+
+    boolean tryAcquire(InetAddress client) {
+        if (global.incrementAndGet() > globalLimit) {
+            global.decrementAndGet();
+            return false;
+        }
+
+        // checked and counted in one step, so a concurrent release cannot drop the entry in between
+        boolean acquired[] = new boolean[1];
+        clients.compute(client, (c, count) -> {
+            int n = (count != null) ? count : 0;
+            acquired[0] = n < clientLimit;
+            return acquired[0] ? Integer.valueOf(n + 1) : count;
+        });
+        if (!acquired[0])
+            global.decrementAndGet();
+        return acquired[0];
+    }
+
+    void release(InetAddress client) {
+        global.decrementAndGet();
+        clients.computeIfPresent(client, (c, count) -> (count > 1) ? count - 1 : null);
+    }
+}
@@ -2,10 +2,25 @@ import java.io.IOException;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
 
 public class Server {
 
-    private static final int SERVER_PORT = 8888;
+    private static final int SERVER_PORT = Integer.getInteger("ftp.port", 8888);
+
+    /**
+     * Pending connections the kernel queues before accept; the JDK default
+     * of 50 refuses connections when hundreds of clients log in at once.
+     */
+    private static final int BACKLOG = Integer.getInteger("ftp.backlog", 1024);
+
+    /**
+     * Control connection model: "blocking" runs a thread per session,
+     * "reactor" multiplexes sessions over a few selector threads.
+     */
+    private static final String MODE = System.getProperty("ftp.mode", "blocking");
+    private static final int SELECTORS =
+            Integer.getInteger("ftp.reactor.selectors", Runtime.getRuntime().availableProcessors());
 
     public static void main(String[] args) throws IOException {
         Server server = new Server();
@@ -13,11 +28,20 @@ public class Server {
     }
 
     private void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
+        ExecutorService sessions = ServerThreads.newPerTaskExecutor("ftp-session");
+        Metrics.INSTANCE.start();
+        GroupCommit.INSTANCE.sweep();
+
+        if (MODE.equals("reactor")) {
+            new ControlReactor(SERVER_PORT, BACKLOG, SELECTORS, sessions).start();
+            return;
+        }
+
+        ServerSocket serverSocket = new ServerSocket(SERVER_PORT, BACKLOG);
         while (true) {
             Socket clientSocket = serverSocket.accept();
             ServerPI pi = new ServerPI(clientSocket);
-            new Thread(pi).start();
+            sessions.execute(pi);
         }
     }
-}
\ No newline at end of file
+}
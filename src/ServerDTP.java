@@ -1,15 +1,62 @@
 import java.io.*;
 import java.net.ConnectException;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class ServerDTP {
+    private static final ReplyWriter.Fixed TRANSFER_COMPLETE = new ReplyWriter.Fixed(226, "Transfer complete.");
+    private static final ReplyWriter.Fixed TRANSFER_ABORTED =
+            new ReplyWriter.Fixed(426, "Connection closed; transfer aborted.");
+    private static final int STAT_BATCH_SIZE = 4096;
+    private static final int PARALLEL_STAT_THRESHOLD = Integer.getInteger("ftp.mlsd.parallelThreshold", 512);
+
     private ServerPI serverPI;
     private String dataHost;
     private int dataPort = -1;
-    private StreamTransmission transmission = new StreamTransmission();
-    private Representation representation = Representation.ASCII;
+    private long allocationSize = 0;
+    private long restartOffset = 0;
+    private PassivePortPool.Lease passiveLease;
+    private volatile PassivePortPool.Lease transferLease;
+    private final StreamTransmission transmission = new StreamTransmission();
+    private final ChannelTransmission channelTransmission = new ChannelTransmission();
+    private final DeflateTransmission deflateTransmission = new DeflateTransmission();
+    private boolean isDeflate = false;
+    private int deflateLevel = DeflateTransmission.DEFAULT_LEVEL;
+    // read by STAT, which may run beside the command thread
+    private volatile Representation representation = Representation.ASCII;
+    private final TokenBucket sessionBucket = new TokenBucket(BandwidthLimiter.SESSION_RATE);
+    private volatile String user;
+    private volatile TokenBucket userBucket;
+
+    // read by isTransferring() from the selector thread and by ABOR and STAT
+    private volatile Future<?> activeTransfer;
+    private volatile SocketChannel activeChannel;
+    private volatile boolean isAborted = false;
+
+    /**
+     * A transfer body; it sends its own 150 and final replies.
+     */
+    private interface Transfer {
+        int run() throws CommandException;
+    }
 
     ServerDTP(ServerPI serverPI) {
         this.serverPI = serverPI;
@@ -23,194 +70,635 @@ class ServerDTP {
         this.representation = representation;
     }
 
+    /**
+     * Selects MODE Z if {@code isDeflate}, stream mode otherwise.
+     */
+    void setDeflate(boolean isDeflate) {
+        this.isDeflate = isDeflate;
+    }
+
+    boolean isDeflate() {
+        return isDeflate;
+    }
+
+    void setDeflateLevel(int level) {
+        deflateLevel = level;
+    }
+
+    /**
+     * Sets the user whose bandwidth share transfers are charged to, or none
+     * if {@code user} is null.
+     */
+    void setUser(String user) {
+        releaseUserBucket();
+        this.user = user;
+        userBucket = (user != null) ? BandwidthLimiter.INSTANCE.acquireUser(user) : null;
+    }
+
+    private void releaseUserBucket() {
+        if (userBucket != null) {
+            userBucket = null;
+            BandwidthLimiter.INSTANCE.releaseUser(user);
+        }
+    }
+
+    TokenBucket getSessionBucket() {
+        return sessionBucket;
+    }
+
+    /**
+     * Returns the bucket of the user set with {@link #setUser}, or null.
+     */
+    TokenBucket getUserBucket() {
+        return userBucket;
+    }
+
     public void setDataPort(String host, int port) {
+        cancelPassive();
         dataHost = host;
         dataPort = port;
     }
 
-    int receiveFile(String path) throws CommandException {
-        int reply = 0;
-        FileOutputStream fos = null;
-        Socket dataSocket = null;
+    /**
+     * Leases a passive port for the next transfer, accepting only a
+     * connection from {@code peer}. Returns the port, or -1 if none is free.
+     */
+    int enterPassiveMode(InetAddress peer) {
+        cancelPassive();
+        passiveLease = PassivePortPool.INSTANCE.lease(peer);
+        return (passiveLease != null) ? passiveLease.getPort() : -1;
+    }
+
+    private void cancelPassive() {
+        if (passiveLease != null) {
+            passiveLease.cancel();
+            passiveLease = null;
+        }
+    }
+
+    private boolean hasDataPort() {
+        return passiveLease != null || transferLease != null || dataPort != -1;
+    }
+
+    /**
+     * Releases a passive port and the user's bandwidth share still held by
+     * the session.
+     */
+    void close() {
+        cancelPassive();
+        // the user name stays for the log line of a transfer still finishing
+        releaseUserBucket();
+    }
+
+    void setAllocationSize(long size) {
+        allocationSize = size;
+    }
+
+    void setRestartOffset(long offset) {
+        restartOffset = offset;
+    }
+
+    private SocketChannel openDataConnection() throws IOException {
+        PassivePortPool.Lease lease = transferLease;
+        if (lease != null) {
+            transferLease = null;
+            activeChannel = lease.accept();
+        } else {
+            activeChannel = SocketChannel.open(new InetSocketAddress(dataHost, dataPort));
+        }
+        Metrics.INSTANCE.dataConnectionsActive.increment();
+        if (isAborted) {
+            activeChannel.close();
+            throw new IOException("Transfer aborted.");
+        }
+        return activeChannel;
+    }
+
+    /**
+     * Runs {@code transfer} on its own thread so the control connection can
+     * still take ABOR and STAT. Transfers of one session run one at a time.
+     */
+    private int startTransfer(Transfer transfer) {
+        waitForTransfer();
+        isAborted = false;
+        transferLease = passiveLease;
+        passiveLease = null;
+        activeTransfer = ServerThreads.TRANSFERS.submit(() -> {
+            try {
+                transfer.run();
+            } catch (CommandException e) {
+                serverPI.reply(e.getCode(), e.getText());
+            } catch (RuntimeException e) {
+                ServerLog.INSTANCE.error(e);
+            } finally {
+                if (activeChannel != null)
+                    Metrics.INSTANCE.dataConnectionsActive.decrement();
+                activeChannel = null;
+                PassivePortPool.Lease lease = transferLease;
+                if (lease != null) {
+                    transferLease = null;
+                    lease.cancel();
+                }
+                // the control side may be idle in a read, so nothing else would send the final reply
+                serverPI.flush();
+            }
+        });
+        return 0;
+    }
+
+    private void waitForTransfer() {
+        awaitTransfer(0);
+    }
+
+    /**
+     * Waits up to {@code millis}, or with 0 for as long as it takes, for the
+     * running transfer and its final reply. Returns false if it is still
+     * running.
+     */
+    boolean awaitTransfer(long millis) {
+        Future<?> transfer = activeTransfer;
+        if (transfer == null)
+            return true;
+        if (!await(transfer, millis))
+            return false;
+        activeTransfer = null;
+        return true;
+    }
+
+    /**
+     * Waits for {@code transfer} as {@link #awaitTransfer} does, without
+     * touching activeTransfer.
+     */
+    private static boolean await(Future<?> transfer, long millis) {
         try {
-            File file = new File(path);
-            if (file.exists())
-                throw new CommandException(550, "File exists in that location.");
+            if (millis > 0)
+                transfer.get(millis, TimeUnit.MILLISECONDS);
+            else
+                transfer.get();
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ServerLog.INSTANCE.error(e);
+        }
+        return true;
+    }
+
+    boolean isTransferring() {
+        Future<?> transfer = activeTransfer;
+        return transfer != null && !transfer.isDone();
+    }
+
+    private int completeTransfer() {
+        if (isAborted)
+            return serverPI.reply(TRANSFER_ABORTED);
+        return serverPI.reply(TRANSFER_COMPLETE);
+    }
+
+    int receiveFile(VirtualPath path) {
+        return receiveFile(path, false);
+    }
+
+    int appendFile(VirtualPath path) {
+        return receiveFile(path, true);
+    }
 
-            fos = new FileOutputStream(file);
+    private int receiveFile(VirtualPath path, boolean append) {
+        Representation representation = this.representation;
+        long allocationSize = this.allocationSize;
+        long restartOffset = this.restartOffset;
+        this.allocationSize = 0;
+        this.restartOffset = 0;
+        return startTransfer(() -> doReceiveFile(path, representation, allocationSize, restartOffset, append));
+    }
 
-            if (dataPort == -1)
-                throw new CommandException(500, "Can't establish data connection: no PORT specified.");
-            dataSocket = new Socket(dataHost, dataPort);
+    int sendFile(VirtualPath path) {
+        Representation representation = this.representation;
+        long restartOffset = this.restartOffset;
+        this.restartOffset = 0;
+        return startTransfer(() -> doSendFile(path, representation, restartOffset));
+    }
+
+    int sendNameList(VirtualPath path) {
+        return startTransfer(() -> doSendNameList(path));
+    }
 
-            serverPI.reply(150, "Opening " + representation.getName() + " mode data connection.");
-            transmission.receiveFile(dataSocket, fos, representation);
-            reply = serverPI.reply(226, "Transfer complete.");
+    int sendList(VirtualPath path) {
+        return startTransfer(() -> doSendList(path));
+    }
+
+    int sendMachineList(VirtualPath path) {
+        return startTransfer(() -> doSendListing(path, ListingCache.MLSD));
+    }
+
+    /**
+     * Stores into {@code path}: a new file, the existing one from a REST
+     * offset on, or the end of it for APPE.
+     */
+    private int doReceiveFile(VirtualPath path, Representation representation, long allocationSize,
+                              long restartOffset, boolean append) throws CommandException {
+        int reply = 0;
+        FileChannel fileChannel = null;
+        SocketChannel dataChannel = null;
+        BandwidthLimiter.Shaper shaper = null;
+        DigestIndex.Upload digest = null;
+        VirtualFileSystem vfs = VirtualFileSystem.INSTANCE;
+        VirtualPath staging = null;
+        boolean isCommitted = false;
+        long start = 0;
+        try {
+            long position = 0;
+            if (append) {
+                fileChannel = vfs.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                position = fileChannel.size();
+            } else if (restartOffset > 0) {
+                if (!vfs.isFile(path))
+                    throw new CommandException(550, "Not a plain file.");
+                position = representation.restartPosition(path, restartOffset);
+                if (position < 0)
+                    throw new CommandException(554, "Invalid restart offset " + restartOffset + ".");
+                fileChannel = vfs.open(path, StandardOpenOption.WRITE);
+            } else {
+                if (vfs.exists(path))
+                    throw new CommandException(550, "File exists in that location.");
+                // a new file only appears under its name once it is complete and on disk
+                staging = GroupCommit.INSTANCE.stagingPath();
+                fileChannel = vfs.open(staging, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                // only a file stored from its first byte can be digested as it arrives
+                digest = DigestIndex.INSTANCE.upload();
+            }
+
+            if (!hasDataPort())
+                throw new CommandException(500, "Can't establish data connection: no PORT or PASV specified.");
+            dataChannel = openDataConnection();
+
+            serverPI.reply(representation.getOpeningReply());
+            start = System.nanoTime();
+            long end;
+            shaper = BandwidthLimiter.INSTANCE.shaper(sessionBucket, userBucket, dataChannel,
+                    Metrics.INSTANCE.bytesReceived(representation));
+            if (representation == Representation.IMAGE && !isDeflate) {
+                end = channelTransmission.receiveFile(dataChannel, fileChannel, position, allocationSize, digest,
+                        shaper);
+            } else {
+                fileChannel.position(position);
+                OutputStream out = Channels.newOutputStream(fileChannel);
+                if (digest != null)
+                    out = digest.wrap(out);
+                if (isDeflate)
+                    deflateTransmission.receiveFile(dataChannel.socket(), out, representation, shaper);
+                else
+                    transmission.receiveFile(dataChannel.socket(), out, representation, shaper);
+                end = fileChannel.position();
+            }
+            // a restarted STOR replaces everything after the offset
+            if (!append)
+                fileChannel.truncate(end);
+            Metrics.INSTANCE.transfer(shaper.getTotal(), System.nanoTime() - start);
+            if (!isAborted) {
+                GroupCommit.INSTANCE.commit(fileChannel, staging, path);
+                isCommitted = true;
+            }
+            reply = completeTransfer();
         } catch (ConnectException e) {
             throw new CommandException(425, "Can't open data connection.");
+        } catch (FileAlreadyExistsException e) {
+            // another upload published the name first
+            throw new CommandException(550, "File exists in that location.");
         } catch (IOException e) {
+            if (isAborted)
+                throw new CommandException(426, "Connection closed; transfer aborted.");
             throw new CommandException(550, "Can't write to file");
         } finally {
             try {
-                if (fos != null)
-                    fos.close();
-                if (dataSocket != null)
-                    dataSocket.close();
+                if (fileChannel != null)
+                    fileChannel.close();
+                if (dataChannel != null)
+                    dataChannel.close();
+                if (staging != null && !isCommitted && vfs.exists(staging))
+                    vfs.delete(staging);
             } catch (IOException e) {
-                e.printStackTrace();
+                ServerLog.INSTANCE.error(e);
+            }
+            File file = vfs.toFile(path);
+            if (fileChannel != null && file != null) {
+                ListingCache.INSTANCE.invalidate(file.getParentFile());
+                HotFileCache.INSTANCE.invalidate(file);
+            }
+            if (digest != null && reply == TRANSFER_COMPLETE.code)
+                DigestIndex.INSTANCE.record(path, digest);
+            if (shaper != null) {
+                shaper.finish();
+                ServerLog.INSTANCE.transfer(serverPI.getClient(), user, logName(path), shaper.getTotal(),
+                        System.nanoTime() - start, representation, 'i', reply == 226);
             }
         }
         return reply;
     }
 
-    int sendFile(String path) throws CommandException {
+    private int doSendFile(VirtualPath path, Representation representation, long restartOffset)
+            throws CommandException {
         int reply = 0;
-        FileInputStream fis = null;
-        Socket dataSocket = null;
+        InputStream in = null;
+        FileChannel fileChannel = null;
+        FileHandleCache.Handle handle = null;
+        ByteBuffer cached = null;
+        boolean isSegment = false;
+        boolean isStarted = false;
+        boolean afterCr = false;
+        SocketChannel dataChannel = null;
+        BandwidthLimiter.Shaper shaper = null;
+        long start = 0;
         try {
-            File file = new File(path);
-            if (!file.isFile()) {
+            VirtualFileSystem vfs = VirtualFileSystem.INSTANCE;
+            if (!vfs.isFile(path)) {
                 throw new CommandException(550, "Not a plain file.");
             }
 
-            fis = new FileInputStream(file);
+            long position = 0;
+            if (restartOffset > 0) {
+                position = representation.restartPosition(path, restartOffset);
+                if (position < 0) {
+                    throw new CommandException(554, "Invalid restart offset " + restartOffset + ".");
+                }
+            }
 
-            if (dataPort == -1) {
-                throw new CommandException(500, "Can't establish data connection: no PORT specified.");
+            if (representation == Representation.IMAGE) {
+                if (!SegmentLimiter.INSTANCE.tryAcquire(serverPI.getClientAddress())) {
+                    throw new CommandException(450, "Too many parallel downloads.");
+                }
+                isSegment = true;
+            }
+            // compressed transfers read the file as a stream, so neither the cache nor sendfile helps them
+            File file = vfs.toFile(path);
+            if (!isDeflate && file != null)
+                cached = HotFileCache.INSTANCE.get(file, representation);
+            if (cached != null) {
+                // the cached content is in wire form, where the restart offset points
+                cached.position((int) restartOffset);
+            } else if (representation == Representation.IMAGE && !isDeflate && file != null) {
+                handle = FileHandleCache.INSTANCE.acquire(file);
+            } else {
+                fileChannel = vfs.open(path, StandardOpenOption.READ);
+                fileChannel.position(position);
+                in = Channels.newInputStream(fileChannel);
+                // a restart on the LF of a CRLF must not send that LF with a CR of its own
+                if (representation == Representation.ASCII && position > 0) {
+                    ByteBuffer previous = ByteBuffer.allocate(1);
+                    afterCr = fileChannel.read(previous, position - 1) == 1 && previous.get(0) == AsciiCodec.CR;
+                }
             }
 
-            dataSocket = new Socket(dataHost, dataPort);
+            if (!hasDataPort()) {
+                throw new CommandException(500, "Can't establish data connection: no PORT or PASV specified.");
+            }
+
+            dataChannel = openDataConnection();
 
-            serverPI.reply(150, "Opening " + representation.getName() + " mode data connection.");
-            transmission.sendFile(fis, dataSocket, representation);
-            reply = serverPI.reply(226, "Transfer complete.");
-        } catch (FileNotFoundException e) {
+            serverPI.reply(representation.getOpeningReply());
+            isStarted = true;
+            start = System.nanoTime();
+            shaper = BandwidthLimiter.INSTANCE.shaper(sessionBucket, userBucket, dataChannel,
+                    Metrics.INSTANCE.bytesSent(representation));
+            if (cached != null)
+                channelTransmission.sendBuffer(cached, dataChannel, shaper);
+            else if (isDeflate)
+                deflateTransmission.sendFile(in, dataChannel.socket(), representation, afterCr, deflateLevel, shaper);
+            else if (handle != null)
+                channelTransmission.sendFile(handle, position, dataChannel, shaper);
+            else if (representation == Representation.IMAGE)
+                channelTransmission.sendFile(fileChannel, position, dataChannel, shaper);
+            else
+                transmission.sendFile(in, dataChannel.socket(), representation, afterCr, shaper);
+            Metrics.INSTANCE.transfer(shaper.getTotal(), System.nanoTime() - start);
+            reply = completeTransfer();
+        } catch (FileNotFoundException | NoSuchFileException e) {
             throw new CommandException(550, "No such file.");
         } catch (ConnectException e) {
             throw new CommandException(425, "Can't open data connection.");
         } catch (IOException e) {
+            // once data is flowing, a failure means the client went away
+            if (isAborted || isStarted)
+                throw new CommandException(426, "Connection closed; transfer aborted.");
             throw new CommandException(553, "Not a regular file.");
         } finally {
+            if (handle != null)
+                handle.release();
+            if (isSegment)
+                SegmentLimiter.INSTANCE.release(serverPI.getClientAddress());
+            if (shaper != null) {
+                shaper.finish();
+                ServerLog.INSTANCE.transfer(serverPI.getClient(), user, logName(path), shaper.getTotal(),
+                        System.nanoTime() - start, representation, 'o', reply == 226);
+            }
             try {
-                if (fis != null)
-                    fis.close();
-                if (dataSocket != null)
-                    dataSocket.close();
+                if (fileChannel != null)
+                    fileChannel.close();
+                if (dataChannel != null)
+                    dataChannel.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                ServerLog.INSTANCE.error(e);
             }
         }
         return reply;
     }
 
-    void abort() {
+    /**
+     * Aborts the running transfer, if any, and waits until it has sent its
+     * final reply. Returns false if nothing was in progress.
+     */
+    boolean abort() {
+        Future<?> transfer = activeTransfer;
+        if (transfer == null || transfer.isDone())
+            return false;
+
+        isAborted = true;
         transmission.abort();
+        channelTransmission.abort();
+        deflateTransmission.abort();
+
+        PassivePortPool.Lease lease = transferLease;
+        if (lease != null)
+            lease.cancel();
+        SocketChannel channel = activeChannel;
+        if (channel != null) {
+            try {
+                // a close alone does not wake a transferTo blocked on a full socket
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                // already closed or never connected
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
+            }
+        }
+        // ABOR may run beside the command thread, which may already have started the next transfer
+        await(transfer, 0);
+        return true;
+    }
+
+    private int doSendNameList(VirtualPath path) throws CommandException {
+        return doSendListing(path, ListingCache.NLST);
     }
 
-    int sendNameList(String path) throws CommandException {
+    private int doSendList(VirtualPath path) throws CommandException {
+        return doSendListing(path, ListingCache.LIST);
+    }
+
+    private int doSendListing(VirtualPath path, char kind) throws CommandException {
         int reply = 0;
-        Socket dataSocket = null;
+        SocketChannel dataChannel = null;
+        BandwidthLimiter.Shaper shaper = null;
+        BlockDeflaterOutputStream deflated = null;
+        DirectoryStream<VirtualPath> entries = null;
         try {
-            File dir = new File(path);
-            String fileNames[] = dir.list();
+            VirtualFileSystem vfs = VirtualFileSystem.INSTANCE;
+            // only a directory on disk can be watched for changes, so only those are cached
+            File dir = vfs.toFile(path);
+            String key = (dir != null) ? dir.getCanonicalPath() : null;
+            byte cached[] = (key != null) ? ListingCache.INSTANCE.get(key, kind) : null;
+
+            Object token = null;
+            if (cached == null && vfs.isDirectory(path)) {
+                if (key != null)
+                    token = ListingCache.INSTANCE.watch(key);
+                entries = vfs.newDirectoryStream(path, GroupCommit.VISIBLE);
+            } else if (cached == null && kind != ListingCache.LIST) {
+                throw new FileNotFoundException(path.toString());
+            }
 
-            dataSocket = new Socket(dataHost, dataPort);
-            Representation representation = Representation.ASCII;
-            PrintWriter writer = new PrintWriter(representation.getOutputStream(dataSocket));
+            dataChannel = openDataConnection();
+            serverPI.reply(Representation.ASCII.getOpeningReply());
+            shaper = BandwidthLimiter.INSTANCE.shaper(sessionBucket, userBucket, dataChannel,
+                    Metrics.INSTANCE.bytesSent(Representation.ASCII));
+            WritableByteChannel out = shaper.wrap(dataChannel);
+            if (isDeflate) {
+                deflated = DeflateTransmission.deflate(Channels.newOutputStream(out), deflateLevel);
+                out = Channels.newChannel(deflated);
+            }
+            if (cached != null) {
+                ByteBuffer buf = ByteBuffer.wrap(cached);
+                while (buf.hasRemaining())
+                    out.write(buf);
+            } else {
+                ListingWriter writer = new ListingWriter(out, ListingCache.MAX_PAYLOAD_SIZE);
+                if (kind == ListingCache.NLST)
+                    writeNames(entries, writer);
+                else if (kind == ListingCache.MLSD)
+                    writeFacts(entries, writer);
+                else
+                    writeList(path, entries, writer);
+                writer.flush();
 
-            serverPI.reply(150, "Opening " + representation.getName() + " mode data connection.");
-            for (String fileName : fileNames) {
-                writer.print(fileName);
-                writer.print('\n');
+                byte listing[] = writer.captured();
+                if (listing != null && key != null)
+                    ListingCache.INSTANCE.put(key, kind, listing, token);
             }
-            writer.flush();
-            reply = serverPI.reply(226, "Transfer complete.");
+            if (deflated != null)
+                deflated.close();
+            reply = completeTransfer();
         } catch (ConnectException e) {
             throw new CommandException(425, "Can't open data connection.");
         } catch (Exception e) {
+            if (isAborted)
+                throw new CommandException(426, "Connection closed; transfer aborted.");
             throw new CommandException(550, "No such directory.");
         } finally {
+            if (deflated != null)
+                deflated.discard();
+            if (shaper != null)
+                shaper.finish();
             try {
-                if (dataSocket != null)
-                    dataSocket.close();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+                if (entries != null)
+                    entries.close();
+                if (dataChannel != null)
+                    dataChannel.close();
+            } catch (IOException e) {
+                ServerLog.INSTANCE.error(e);
             }
         }
         return reply;
     }
 
-    int sendList(String path) throws CommandException {
-        int reply = 0;
-        Socket dataSocket = null;
-        try {
-            File dir = new File(path);
-            String fileNames[] = dir.list();
-            int numFiles = (fileNames != null) ? fileNames.length : 0;
+    private static void writeNames(DirectoryStream<VirtualPath> entries, ListingWriter writer) throws IOException {
+        for (VirtualPath entry : entries)
+            writer.writeName(entry.getName());
+    }
 
-            dataSocket = new Socket(dataHost, dataPort);
-            Representation representation = Representation.ASCII;
-            PrintWriter writer = new PrintWriter(representation.getOutputStream(dataSocket));
+    /**
+     * Writes the long listing of {@code dir}, just its total if it is not a
+     * directory. The total is counted in a first pass over the directory so
+     * that neither pass has to hold the entries.
+     */
+    private static void writeList(VirtualPath dir, DirectoryStream<VirtualPath> entries, ListingWriter writer)
+            throws IOException {
+        if (entries == null) {
+            writer.writeTotal(0);
+            return;
+        }
 
-            serverPI.reply(150, "Opening " + representation.getName() + " mode data connection.");
-            writer.print("total " + numFiles + "\n");
+        int count = 0;
+        try (DirectoryStream<VirtualPath> names = VirtualFileSystem.INSTANCE.newDirectoryStream(dir,
+                GroupCommit.VISIBLE)) {
+            for (VirtualPath ignored : names)
+                count++;
+        }
+        writer.writeTotal(count);
 
-            for (int i = 0; i < numFiles; i++) {
-                String fileName = fileNames[i];
+        for (VirtualPath entry : entries) {
+            BasicFileAttributes attrs = readAttributes(entry);
+            if (attrs != null)
+                writer.writeEntry(entry.getName(), attrs);
+        }
+    }
 
-                File file = new File(dir, fileName);
-                listFile(file, writer);
+    /**
+     * Writes the MLSD listing of a directory. Entries are taken in batches
+     * and a large batch is stat'ed on the fork-join pool, then written in
+     * directory order.
+     */
+    private static void writeFacts(DirectoryStream<VirtualPath> entries, ListingWriter writer) throws IOException {
+        List<VirtualPath> batch = new ArrayList<>(STAT_BATCH_SIZE);
+        for (VirtualPath entry : entries) {
+            batch.add(entry);
+            if (batch.size() == STAT_BATCH_SIZE) {
+                writeFacts(batch, writer);
+                batch.clear();
             }
+        }
+        writeFacts(batch, writer);
+    }
 
-            writer.flush();
+    private static void writeFacts(List<VirtualPath> batch, ListingWriter writer) throws IOException {
+        Stream<VirtualPath> paths = batch.size() >= PARALLEL_STAT_THRESHOLD ? batch.parallelStream() : batch.stream();
+        List<BasicFileAttributes> attrs = paths.map(ServerDTP::readAttributes).collect(Collectors.toList());
+        for (int i = 0; i < batch.size(); i++) {
+            if (attrs.get(i) != null)
+                writer.writeFacts(batch.get(i).getName(), attrs.get(i));
+        }
+    }
 
-            reply = serverPI.reply(226, "Transfer complete.");
-        } catch (ConnectException e) {
-            throw new CommandException(425, "Can't open data connection.");
-        } catch (Exception e) {
-            throw new CommandException(550, "No such directory.");
-        } finally {
-            try {
-                if (dataSocket != null)
-                    dataSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Returns the attributes of a directory entry, or null if it was
+     * removed while listing.
+     */
+    private static BasicFileAttributes readAttributes(VirtualPath entry) {
+        try {
+            return VirtualFileSystem.INSTANCE.attributes(entry);
+        } catch (IOException e) {
+            return null;
         }
-        return reply;
     }
 
-    private void listFile(File file, PrintWriter writer) throws IOException{
-        Date date = new Date(file.lastModified());
-        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd hh:mm");
-        String dateStr = dateFormat.format(date);
-        long size = file.length();
-        String sizeStr = Long.toString(size);
-        int sizePadLength = Math.max(8 - sizeStr.length(), 0);
-        String sizeField = pad(sizePadLength) + sizeStr;
-        writer.print(file.isDirectory() ? 'd' : '-');
-        writer.print("rwxrwxrwx");
-        writer.print(" ");
-        writer.print("  1");
-        writer.print(" ");
-        writer.print("ftp     ");
-        writer.print(" ");
-        writer.print("ftp     ");
-        writer.print(" ");
-        writer.print(sizeField);
-        writer.print(" ");
-        writer.print(dateStr);
-        writer.print(" ");
-        writer.print(file.getName());
-
-        writer.print('\n');
-    }
-
-    private static String pad(int length) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0; i < length; i++)
-            buf.append(' ');
-        return buf.toString();
+    /**
+     * Returns the name a transfer of {@code path} is logged under: the file
+     * on disk when there is one, as before, the served path otherwise.
+     */
+    private static String logName(VirtualPath path) {
+        File file = VirtualFileSystem.INSTANCE.toFile(path);
+        return (file != null) ? file.getPath() : path.toString();
     }
 }
\ No newline at end of file
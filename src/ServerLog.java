@@ -0,0 +1,353 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log. Sessions publish events into a bounded lock-free
+ * ring and return at once; one background thread drains the ring in
+ * batches, formats the events and writes them out with one flush per batch.
+ *
+ * <p>Commands, transfers and errors go to stdout or -Dftp.log.file, as text
+ * or, with -Dftp.log.format=json, one JSON object per line. Transfers are
+ * also written in wu-ftpd xferlog format to -Dftp.log.xferlog if it is set.
+ * When the ring (-Dftp.log.bufferSize events) is full, -Dftp.log.policy
+ * decides whether an event is dropped, which is the default, or whether
+ * the session waits for room.
+ */
+class ServerLog implements Runnable {
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Integer.getInteger("ftp.log.bufferSize", 8192));
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK = 100000000L;
+    private static final boolean JSON = System.getProperty("ftp.log.format", "text").equals("json");
+    private static final boolean BLOCK = System.getProperty("ftp.log.policy", "drop").equals("block");
+
+    private static final DateTimeFormatter XFERLOG_TIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneId.systemDefault());
+
+    static final ServerLog INSTANCE = new ServerLog();
+
+    private enum Kind { COMMAND, TRANSFER, ERROR, WARNING }
+
+    /**
+     * One log record, formatted later on the writer thread.
+     */
+    private static final class Event {
+        final Kind kind;
+        final long time = System.currentTimeMillis();
+        final String client;
+        final String user;
+        final String text;
+        final Throwable error;
+        final long bytes;
+        final long nanos;
+        final char type;
+        final char direction;
+        final boolean complete;
+
+        Event(Kind kind, String client, String user, String text, Throwable error,
+              long bytes, long nanos, char type, char direction, boolean complete) {
+            this.kind = kind;
+            this.client = client;
+            this.user = user;
+            this.text = text;
+            this.error = error;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.type = type;
+            this.direction = direction;
+            this.complete = complete;
+        }
+    }
+
+    // bounded MPSC ring: a slot may be written when its sequence equals the
+    // claimed position and read once it is one past it
+    private final Event events[] = new Event[BUFFER_SIZE];
+    private final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    private final Writer out;
+    private final Writer xferlog;
+    private final Thread writer;
+    private volatile boolean isIdle = false;
+    private volatile boolean isClosed = false;
+
+    private ServerLog() {
+        for (int i = 0; i < BUFFER_SIZE; i++)
+            sequences.set(i, i);
+
+        out = open(System.getProperty("ftp.log.file"), new OutputStreamWriter(System.out));
+        xferlog = open(System.getProperty("ftp.log.xferlog"), null);
+
+        writer = new Thread(this, "ftp-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private static Writer open(String path, Writer fallback) {
+        if (path == null)
+            return fallback;
+        try {
+            return new OutputStreamWriter(new FileOutputStream(path, true));
+        } catch (IOException e) {
+            System.err.println("Can't open log " + path + ": " + e.getMessage());
+            return fallback;
+        }
+    }
+
+    /**
+     * Logs a command line received from {@code client}, with any password
+     * masked.
+     */
+    void command(String client, String user, String line) {
+        user = user != null ? user : "-";
+        if (isPass(line))
+            line = "PASS ****";
+        publish(new Event(Kind.COMMAND, client, user, line, null, 0, 0, ' ', ' ', true));
+    }
+
+    /**
+     * Returns whether the first word of {@code line}, split on any
+     * whitespace, is PASS. This is looser than command dispatch, so no
+     * separator the dispatcher takes can slip a password past it.
+     */
+    private static boolean isPass(String line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start)))
+            start++;
+        int end = start;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+            end++;
+        return end - start == 4 && line.regionMatches(true, start, "PASS", 0, 4);
+    }
+
+    /**
+     * Logs a finished or failed transfer of {@code bytes} bytes of
+     * {@code path}; {@code direction} is 'o' for RETR and 'i' for STOR.
+     */
+    void transfer(String client, String user, String path, long bytes, long nanos,
+                  Representation representation, char direction, boolean complete) {
+        user = user != null ? user : "-";
+        char type = representation == Representation.ASCII ? 'a' : 'b';
+        publish(new Event(Kind.TRANSFER, client, user, path, null, bytes, nanos, type, direction, complete));
+    }
+
+    void warn(String message) {
+        publish(new Event(Kind.WARNING, null, null, message, null, 0, 0, ' ', ' ', true));
+    }
+
+    void error(Throwable error) {
+        error(String.valueOf(error.getMessage()), error);
+    }
+
+    void error(String message, Throwable error) {
+        publish(new Event(Kind.ERROR, null, null, message, error, 0, 0, ' ', ' ', true));
+    }
+
+    private void publish(Event event) {
+        if (isClosed) {
+            synchronized (this) {
+                write(event);
+                flush();
+            }
+            return;
+        }
+
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & (BUFFER_SIZE - 1);
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (!tail.compareAndSet(position, position + 1))
+                    continue;
+                events[slot] = event;
+                sequences.set(slot, position + 1);
+                if (isIdle)
+                    LockSupport.unpark(writer);
+                return;
+            }
+            if (sequence < position) {
+                // full
+                if (!BLOCK) {
+                    Metrics.INSTANCE.logDropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            int drained;
+            synchronized (this) {
+                drained = drain();
+            }
+            if (drained == 0) {
+                isIdle = true;
+                if (!hasEvents())
+                    LockSupport.parkNanos(this, IDLE_PARK);
+                isIdle = false;
+            }
+        }
+    }
+
+    private boolean hasEvents() {
+        return sequences.get((int) head & (BUFFER_SIZE - 1)) == head + 1;
+    }
+
+    /**
+     * Writes out up to one batch of events, and returns how many there were.
+     */
+    private int drain() {
+        int count = 0;
+        while (count < BATCH_SIZE && hasEvents()) {
+            int slot = (int) head & (BUFFER_SIZE - 1);
+            Event event = events[slot];
+            events[slot] = null;
+            sequences.set(slot, head + BUFFER_SIZE);
+            head++;
+            write(event);
+            count++;
+        }
+        if (count > 0)
+            flush();
+        return count;
+    }
+
+    private void close() {
+        synchronized (this) {
+            isClosed = true;
+            while (drain() > 0)
+                ;
+        }
+    }
+
+    private void write(Event event) {
+        try {
+            StringBuilder buf = new StringBuilder(128);
+            if (JSON)
+                formatJson(event, buf);
+            else if (event.kind == Kind.TRANSFER)
+                formatXferlog(event, buf);
+            else
+                formatText(event, buf);
+            out.write(buf.append('\n').toString());
+
+            if (xferlog != null && event.kind == Kind.TRANSFER) {
+                buf.setLength(0);
+                formatXferlog(event, buf);
+                xferlog.write(buf.append('\n').toString());
+            }
+        } catch (IOException e) {
+            System.err.println("Log write failed: " + e.getMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+            if (xferlog != null)
+                xferlog.flush();
+        } catch (IOException e) {
+            System.err.println("Log flush failed: " + e.getMessage());
+        }
+    }
+
+    private static void formatText(Event event, StringBuilder buf) {
+        buf.append(Instant.ofEpochMilli(event.time)).append(' ');
+        switch (event.kind) {
+            case COMMAND:
+                buf.append(event.client).append(' ').append(event.user).append(' ').append(event.text);
+                break;
+            case WARNING:
+                buf.append("WARNING ").append(event.text);
+                break;
+            default:
+                buf.append("ERROR ").append(event.text);
+                if (event.error != null)
+                    buf.append('\n').append(stackTrace(event.error).trim());
+        }
+    }
+
+    /**
+     * Formats a transfer as one line of wu-ftpd's xferlog.
+     */
+    private static void formatXferlog(Event event, StringBuilder buf) {
+        buf.append(XFERLOG_TIME.format(Instant.ofEpochMilli(event.time))).append(' ')
+                .append(Math.max(1, Math.round(event.nanos / 1e9))).append(' ')
+                .append(event.client).append(' ')
+                .append(event.bytes).append(' ')
+                .append(event.text.replace(' ', '_')).append(' ')
+                .append(event.type).append(" _ ")
+                .append(event.direction).append(" r ")
+                .append(event.user).append(" ftp 0 * ")
+                .append(event.complete ? 'c' : 'i');
+    }
+
+    private static void formatJson(Event event, StringBuilder buf) {
+        buf.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time)).append("\",\"event\":\"")
+                .append(event.kind.name().toLowerCase(Locale.ROOT)).append('"');
+        if (event.client != null)
+            field(buf, "client", event.client);
+        if (event.user != null)
+            field(buf, "user", event.user);
+        switch (event.kind) {
+            case COMMAND:
+                field(buf, "line", event.text);
+                break;
+            case TRANSFER:
+                field(buf, "path", event.text);
+                buf.append(",\"bytes\":").append(event.bytes)
+                        .append(",\"seconds\":").append(event.nanos / 1e9);
+                field(buf, "type", event.type == 'a' ? "ascii" : "binary");
+                field(buf, "direction", event.direction == 'o' ? "out" : "in");
+                buf.append(",\"complete\":").append(event.complete);
+                break;
+            default:
+                field(buf, "message", event.text);
+                if (event.error != null)
+                    field(buf, "exception", stackTrace(event.error));
+        }
+        buf.append('}');
+    }
+
+    private static void field(StringBuilder buf, String name, String value) {
+        buf.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                buf.append('\\').append(c);
+            else if (c == '\n')
+                buf.append("\\n");
+            else if (c == '\r')
+                buf.append("\\r");
+            else if (c == '\t')
+                buf.append("\\t");
+            else if (c < 0x20)
+                buf.append(String.format("\\u%04x", (int) c));
+            else
+                buf.append(c);
+        }
+        buf.append('"');
+    }
+
+    private static String stackTrace(Throwable error) {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    static String address(InetAddress address) {
+        return address != null ? address.getHostAddress() : "-";
+    }
+}
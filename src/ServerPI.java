@@ -1,32 +1,138 @@
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.Socket;
 
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
-import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.concurrent.locks.ReentrantLock;
 
 class ServerPI implements Runnable {
 
+    static final CommandTable COMMANDS = CommandTable.builder()
+            .add("USER", ServerPI::handle_user)
+            .add("PASS", ServerPI::handle_pass)
+            .add("LIST", ServerPI::handle_list)
+            .add("PWD", ServerPI::handle_pwd)
+            .add("TYPE", ServerPI::handle_type)
+            .add("MODE", ServerPI::handle_mode)
+            .add("OPTS", ServerPI::handle_opts)
+            .add("PASV", ServerPI::handle_pasv)
+            .add("EPSV", ServerPI::handle_epsv)
+            .add("PORT", ServerPI::handle_port)
+            .add("CWD", ServerPI::handle_cwd)
+            .add("CDUP", ServerPI::handle_cdup)
+            .add("QUIT", ServerPI::handle_quit)
+            .add("NOOP", ServerPI::handle_noop)
+            .add("ABOR", ServerPI::handle_abor)
+            .add("STAT", ServerPI::handle_stat)
+            .add("NLST", ServerPI::handle_nlst)
+            .add("MKD", ServerPI::handle_mkd)
+            .add("DELE", ServerPI::handle_dele)
+            .add("RMD", ServerPI::handle_rmd)
+            .add("SIZE", ServerPI::handle_size)
+            .add("ALLO", ServerPI::handle_allo)
+            .add("REST", ServerPI::handle_rest)
+            .add("REIN", ServerPI::handle_rein)
+            .add("RETR", ServerPI::handle_retr)
+            .add("STOR", ServerPI::handle_stor)
+            .add("APPE", ServerPI::handle_appe)
+            .add("FEAT", ServerPI::handle_feat)
+            .add("MDTM", ServerPI::handle_mdtm)
+            .add("MLST", ServerPI::handle_mlst)
+            .add("MLSD", ServerPI::handle_mlsd)
+            .add("SITE", ServerPI::handle_site)
+            .add("HASH", ServerPI::handle_hash)
+            .add("RANG", ServerPI::handle_rang)
+            .add("XCRC", ServerPI::handle_xcrc)
+            .add("XMD5", ServerPI::handle_xmd5)
+            .add("XSHA1", ServerPI::handle_xsha1)
+            .add("XSHA256", ServerPI::handle_xsha256)
+            .add("XSHA512", ServerPI::handle_xsha512)
+            .build();
+
+    private static final ReplyWriter.Fixed PORT_OK = new ReplyWriter.Fixed(200, "PORT command successful.");
+    private static final ReplyWriter.Fixed EPSV_ALL_OK = new ReplyWriter.Fixed(200, "EPSV ALL command successful.");
+    private static final ReplyWriter.Fixed NOOP_OK = new ReplyWriter.Fixed(200, "NOOP command successful.");
+    private static final ReplyWriter.Fixed ALLO_OK = new ReplyWriter.Fixed(200, "ALLO command successful.");
+    private static final ReplyWriter.Fixed GOODBYE = new ReplyWriter.Fixed(221, "Goodbye.");
+    private static final ReplyWriter.Fixed ABOR_OK = new ReplyWriter.Fixed(226, "ABOR command successful.");
+    private static final ReplyWriter.Fixed CWD_OK = new ReplyWriter.Fixed(250, "CWD command successful.");
+    private static final ReplyWriter.Fixed DELE_OK = new ReplyWriter.Fixed(250, "DELE command successful.");
+    private static final ReplyWriter.Fixed RMD_OK = new ReplyWriter.Fixed(250, "RMD command successful.");
+    private static final ReplyWriter.Fixed READY = new ReplyWriter.Fixed(220, "Service ready for new user.");
+
+    private static final String FEATURES[] = {
+            "EPSV", "HASH", "MDTM", "MLST type*;size*;modify*;", "MODE Z", "PASV", "REST STREAM", "SIZE",
+            "XCRC", "XMD5", "XSHA1", "XSHA256", "XSHA512"
+    };
+
+    // shared by commands without arguments; an empty tokenizer has no state to change
+    private static final StringTokenizer NO_ARGS = new StringTokenizer("");
+
+    // pipelined lines read ahead while a transfer runs, before the client is left to wait
+    static final int MAX_PIPELINED_LINES = 64;
+    private static final long READ_AHEAD_INTERVAL = 50;
+
     private Socket clientSocket;
+    private final String client;
     private BufferedReader reader;
-    private PrintWriter writer;
-    private ServerDTP dtp;
-    private Class commandHandlerArgTypes[] = { String.class, StringTokenizer.class };
+    private final ReplyWriter writer;
+    private final ArrayDeque<String> pipelined = new ArrayDeque<>();
+    // read by ABOR and STAT, which may run beside the command thread
+    private volatile ServerDTP dtp;
+
+    private volatile String username;
+    private volatile String password;
+    // held by ABOR and STAT until they have replied; a lock, not a monitor, as ABOR blocks while holding it
+    private final ReentrantLock outOfBand = new ReentrantLock();
+    private boolean isAdmin = false;
+
+    private static final String PASSIVE_ADDRESS = System.getProperty("ftp.pasv.address");
+
+    // the one account that may change the USER and GLOBAL rates; none unless both are set
+    private static final String ADMIN = System.getProperty("ftp.admin");
+    private static final String ADMIN_PASSWORD = System.getProperty("ftp.admin.password");
+
+    private static final int RESOLVED_PATHS = 256;
 
-    private String username;
-    private String password;
+    private final VirtualFileSystem vfs = VirtualFileSystem.INSTANCE;
+    private VirtualPath currentDir = VirtualPath.ROOT;
+    // path arguments resolved against currentDir
+    private final HashMap<String, VirtualPath> resolved = new HashMap<>();
+    private boolean isClosed = false;
 
-    private final String baseDir = System.getProperty("user.home");
-    private String currentDir = "/";
+    private String hashAlgorithm = DigestIndex.DEFAULT_ALGORITHM;
+    // byte range set by RANG for the next HASH, end exclusive; -1 for the whole file
+    private long rangeStart = -1;
+    private long rangeEnd = -1;
 
     ServerPI(Socket clientSocket) throws IOException {
-        this.clientSocket = clientSocket;
+        this(clientSocket, Channels.newChannel(clientSocket.getOutputStream()));
         reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream()), true);
+    }
+
+    /**
+     * Creates a session whose command lines are fed through
+     * {@link #handleCommand} by the caller and whose replies go to {@code out}.
+     * Replies are buffered until {@link #flush}, so the caller can send the
+     * replies to a batch of pipelined commands in one write.
+     */
+    ServerPI(Socket clientSocket, WritableByteChannel out) {
+        this.clientSocket = clientSocket;
+        this.client = ServerLog.address(clientSocket != null ? clientSocket.getInetAddress() : null);
+        writer = new ReplyWriter(out);
 
         dtp = new ServerDTP(this);
+        Metrics.INSTANCE.sessionsTotal.increment();
+        Metrics.INSTANCE.sessionsActive.increment();
     }
 
     @Override
@@ -34,58 +140,95 @@ class ServerPI implements Runnable {
         try {
             handleClient();
         } catch (Exception e) {
-            e.printStackTrace();
+            ServerLog.INSTANCE.error(e);
         } finally {
+            close();
             try {
                 clientSocket.close();
             } catch (Exception e) {
-                e.printStackTrace();
+                ServerLog.INSTANCE.error(e);
             }
         }
     }
 
+    /**
+     * Queues a reply. A preliminary reply is sent at once, as the client
+     * waits for it before the data connection goes on.
+     */
     int reply(int code, String text) {
-        writer.println(code + " " + text);
+        Metrics.INSTANCE.reply(code);
+        writer.write(code, text);
+        if (code < 200)
+            writer.flush();
         return code;
     }
 
-    private String createNativePath(String ftpPath) {
-        String path = baseDir;
-
-        if (ftpPath.charAt(0) != '/') {
-            path += (currentDir + "/");
-        }
-
-        path += ftpPath;
+    int reply(ReplyWriter.Fixed reply) {
+        Metrics.INSTANCE.reply(reply.code);
+        writer.write(reply);
+        if (reply.code < 200)
+            writer.flush();
+        return reply.code;
+    }
 
-        return path;
+    /**
+     * Sends a reply whose text is {@code before}, {@code arg} and
+     * {@code after}.
+     */
+    int reply(int code, String before, String arg, String after) {
+        Metrics.INSTANCE.reply(code);
+        writer.write(code, before, arg, after);
+        return code;
     }
 
-    private String resolvePath(String path) {
-        if (path.charAt(0) != '/') {
-            path = currentDir + "/" + path;
-        }
+    /**
+     * Sends a multi-line reply: {@code first}, then each of {@code lines}
+     * indented by a space, then {@code last} on the closing line.
+     */
+    int reply(int code, String first, String lines[], String last) {
+        Metrics.INSTANCE.reply(code);
+        writer.write(code, first, lines, last);
+        return code;
+    }
 
-        StringTokenizer pathSt = new StringTokenizer(path, "/");
-        Stack<String> segments = new Stack<>();
+    /**
+     * Sends the replies queued so far.
+     */
+    void flush() {
+        writer.flush();
+    }
 
-        while (pathSt.hasMoreTokens()) {
-            String segment = pathSt.nextToken();
-            if (segment.equals("..")) {
-                if (!segments.empty()) {
-                    segments.pop();
-                }
-            } else if (segment.equals(".")) {
-                // skip
-            } else {
-                segments.push(segment);
-            }
+    /**
+     * Resolves a path argument against the current directory. Sessions tend
+     * to name the same few paths over and over, so the results are kept
+     * until the current directory changes. The server's staging directory
+     * cannot be named.
+     */
+    VirtualPath resolve(String arg) throws CommandException {
+        VirtualPath path = resolved.get(arg);
+        if (path == null) {
+            path = currentDir.resolve(arg);
+            if (GroupCommit.isStaging(path))
+                throw new CommandException(553, arg + ": file name not allowed");
+            if (resolved.size() >= RESOLVED_PATHS)
+                resolved.clear();
+            resolved.put(arg, path);
         }
+        return path;
+    }
 
-        StringBuilder pathBuf = new StringBuilder("/");
-        segments.forEach(elem -> { pathBuf.append(elem); pathBuf.append("/"); });
+    private void changeDirectory(VirtualPath dir) {
+        currentDir = dir;
+        resolved.clear();
+    }
 
-        return pathBuf.toString();
+    /**
+     * Drops the cached listings of {@code dir}, if it is on disk.
+     */
+    private void invalidateListing(VirtualPath dir) {
+        File file = vfs.toFile(dir);
+        if (file != null)
+            ListingCache.INSTANCE.invalidate(file);
     }
 
     private void checkLogin() throws CommandException {
@@ -95,47 +238,169 @@ class ServerPI implements Runnable {
     }
 
     private void handleClient() throws IOException {
-        reply(220, clientSocket.getInetAddress().getHostName()+ " FTP server is ready");
+        greet();
         String line;
 
-        while ((line = reader.readLine()) != null)
+        while ((line = pipelined.isEmpty() ? reader.readLine() : pipelined.poll()) != null)
         {
-            //debug
-            System.out.println(line);
-            //debug
-
-            StringTokenizer st = new StringTokenizer(line);
-            String command = st.nextToken().toLowerCase();
-            Object args[] = { line, st };
+            if (!isOutOfBand(line)) {
+                readAheadUntilTransferred();
+            }
+            if (!handleCommand(line)) {
+                flush();
+                return;
+            }
+            // replies to pipelined commands go out together once the input runs dry
+            if (pipelined.isEmpty() && !reader.ready()) {
+                flush();
+            }
+        }
+    }
 
-            try {
-                Method commandHandler = getClass().getMethod("handle_" + command, commandHandlerArgTypes);
-                int code = (Integer) commandHandler.invoke(this, args);
-                if (code == 221) {
-                    return;
+    /**
+     * Waits for the running transfer, if any, so the next command sees its
+     * result and replies after it. Lines arriving meanwhile are read and
+     * queued, except ABOR and STAT, which run at once.
+     */
+    private void readAheadUntilTransferred() throws IOException {
+        while (!dtp.awaitTransfer(READ_AHEAD_INTERVAL)) {
+            while (pipelined.size() < MAX_PIPELINED_LINES && reader.ready()) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
                 }
-            } catch (InvocationTargetException e) {
-                try {
-                    throw (Exception) e.getTargetException();
-                } catch (CommandException ce) {
-                    reply(ce.getCode(), ce.getText());
-                } catch (NoSuchElementException e1) {
-                    reply(500, "'" + line + "': command not understood.");
-                } catch (Exception e1) {
-                    e1.printStackTrace();
+                if (isOutOfBand(line)) {
+                    handleOutOfBand(line);
+                    flush();
+                } else {
+                    pipelined.add(line);
                 }
-            } catch (NoSuchMethodException e) {
-                reply(500, "'" + line + "': command not understood.");
-            } catch (Exception e) {
-                e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Returns whether {@code line} is a command that may run while a
+     * transfer is in progress, ahead of the commands queued before it.
+     */
+    static boolean isOutOfBand(String line) {
+        int start = CommandTable.verbStart(line);
+        int end = CommandTable.verbEnd(line, start);
+        return end - start == 4
+                && (line.regionMatches(true, start, "ABOR", 0, 4) || line.regionMatches(true, start, "STAT", 0, 4));
+    }
+
+    /**
+     * Waits for the running transfer, for callers that queue pipelined lines
+     * themselves.
+     */
+    void awaitTransfer() {
+        dtp.awaitTransfer(0);
+        // an ABOR that ended the transfer holds the lock until it has replied, so its 226 goes first
+        outOfBand.lock();
+        outOfBand.unlock();
+    }
+
+    boolean isTransferring() {
+        return dtp.isTransferring();
+    }
+
+    /**
+     * Returns the client's address as it appears in the logs.
+     */
+    String getClient() {
+        return client;
+    }
+
+    InetAddress getClientAddress() {
+        return clientSocket.getInetAddress();
+    }
+
+    /**
+     * Releases data connection resources held by the session.
+     */
+    void close() {
+        synchronized (this) {
+            if (isClosed)
+                return;
+            isClosed = true;
+        }
+        Metrics.INSTANCE.sessionsActive.decrement();
+        dtp.close();
+    }
+
+    /**
+     * Sends the 220 greeting. It names the client by address, as a reverse
+     * lookup could stall the selector thread the reactor greets from.
+     */
+    void greet() {
+        reply(220, client + " FTP server is ready");
+        flush();
+    }
+
+    /**
+     * Executes ABOR or STAT, see {@link #isOutOfBand}, while a transfer is in
+     * progress. It may run on another thread than the command queued behind
+     * the transfer, so it goes to the two handlers directly, which only read
+     * the volatile login and DTP state and abort through the DTP.
+     */
+    void handleOutOfBand(String line) {
+        ServerLog.INSTANCE.command(client, username, line);
+
+        int start = CommandTable.verbStart(line);
+        int end = CommandTable.verbEnd(line, start);
+        StringTokenizer st = (end < line.length()) ? new StringTokenizer(line.substring(end)) : NO_ARGS;
+
+        outOfBand.lock();
+        try {
+            if (line.regionMatches(true, start, "ABOR", 0, 4))
+                handle_abor(line, st);
+            else
+                handle_stat(line, st);
+        } catch (CommandException ce) {
+            reply(ce.getCode(), ce.getText());
+        } finally {
+            outOfBand.unlock();
+        }
+    }
+
+    /**
+     * Executes one command line and returns false once the session is over.
+     */
+    boolean handleCommand(String line) {
+        ServerLog.INSTANCE.command(client, username, line);
+
+        int start = CommandTable.verbStart(line);
+        int end = CommandTable.verbEnd(line, start);
+        CommandHandler handler = COMMANDS.get(line, start, end);
+        if (handler == null) {
+            Metrics.INSTANCE.unknownCommands.increment();
+            reply(500, "'", line, "': command not understood.");
+            return true;
+        }
+
+        StringTokenizer st = (end < line.length()) ? new StringTokenizer(line.substring(end)) : NO_ARGS;
+
+        try {
+            int code = handler.handle(this, line, st);
+            if (code == 221) {
+                return false;
+            }
+        } catch (CommandException ce) {
+            reply(ce.getCode(), ce.getText());
+        } catch (NoSuchElementException e) {
+            reply(500, "'", line, "': command not understood.");
+        } catch (Exception e) {
+            ServerLog.INSTANCE.error(e);
+        }
+        return true;
+    }
+
     public int handle_user(String line, StringTokenizer st) throws CommandException {
         username = st.nextToken();
+        isAdmin = false;
 
-        return reply(331, "Password required for " + username + ".");
+        return reply(331, "Password required for ", username, ".");
     }
 
     public int handle_pass(String line, StringTokenizer st) throws CommandException {
@@ -144,16 +409,16 @@ class ServerPI implements Runnable {
         }
 
         this.password = (st.hasMoreTokens()) ? st.nextToken() : "";
+        isAdmin = isAdmin(username, password);
+        dtp.setUser(username);
 
-        return reply(230, "User " + username + " logged in.");
+        return reply(230, "User ", username, " logged in.");
     }
 
     public int handle_list(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
-        String path = (st.hasMoreTokens() ? st.nextToken() : currentDir);
-
-        path = createNativePath(path);
+        VirtualPath path = (st.hasMoreTokens() ? resolve(st.nextToken()) : currentDir);
 
         return dtp.sendList(path);
     }
@@ -161,7 +426,7 @@ class ServerPI implements Runnable {
     public int handle_pwd(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
-        return reply(257, currentDir);
+        return reply(257, currentDir.toString());
     }
 
     public int handle_type(String line, StringTokenizer st) throws CommandException {
@@ -180,12 +445,102 @@ class ServerPI implements Runnable {
         }
 
         dtp.setRepresentation(representation);
-        return reply(200, "Type set to " + arg);
+        return reply(200, "Type set to ", arg, "");
+    }
+
+    /**
+     * MODE S transfers data as is, MODE Z as a zlib stream.
+     */
+    public int handle_mode(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+        String arg = st.nextToken().toUpperCase();
+
+        if (arg.equals("S")) {
+            dtp.setDeflate(false);
+        } else if (arg.equals("Z")) {
+            dtp.setDeflate(true);
+        } else {
+            throw new CommandException(504, "MODE: unsupported argument '" + arg + "'");
+        }
+        return reply(200, "Mode set to ", arg, "");
+    }
+
+    /**
+     * OPTS MODE Z LEVEL n sets the compression level of MODE Z, 0 to 9.
+     */
+    public int handle_opts(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+        String command = st.nextToken().toUpperCase();
+
+        if (command.equals("HASH")) {
+            return optsHash(st);
+        }
+        if (!command.equals("MODE")) {
+            throw new CommandException(501, "OPTS " + command + " not understood.");
+        }
+        if (!st.nextToken().equalsIgnoreCase("Z") || !st.nextToken().equalsIgnoreCase("LEVEL")) {
+            throw new CommandException(501, "OPTS MODE: only MODE Z LEVEL is supported.");
+        }
+        String arg = st.nextToken();
+        int level;
+        try {
+            level = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            throw new CommandException(501, "OPTS MODE Z: invalid level '" + arg + "'");
+        }
+        if (level < 0 || level > 9) {
+            throw new CommandException(501, "OPTS MODE Z: invalid level '" + arg + "'");
+        }
+
+        dtp.setDeflateLevel(level);
+        return reply(200, "MODE Z level set to ", arg, ".");
+    }
+
+    /**
+     * OPTS HASH shows the algorithm HASH uses; OPTS HASH name selects it.
+     */
+    private int optsHash(StringTokenizer st) throws CommandException {
+        if (st.hasMoreTokens()) {
+            String arg = st.nextToken();
+            String algorithm = DigestIndex.algorithm(arg);
+            if (algorithm == null) {
+                throw new CommandException(504, "OPTS HASH: unknown algorithm '" + arg + "'");
+            }
+            hashAlgorithm = algorithm;
+        }
+        return reply(200, hashAlgorithm);
     }
 
     public int handle_pasv(String line, StringTokenizer st) throws CommandException {
         checkLogin();
-        return reply(500, "'" + line + "': command not supported.");
+
+        String host = (PASSIVE_ADDRESS != null) ? PASSIVE_ADDRESS : clientSocket.getLocalAddress().getHostAddress();
+        if (host.indexOf(':') >= 0) {
+            throw new CommandException(522, "PASV needs IPv4, use EPSV.");
+        }
+
+        int port = enterPassiveMode();
+        return reply(227, "Entering Passive Mode (" + host.replace('.', ',') + ","
+                + (port >> 8) + "," + (port & 0xff) + ").");
+    }
+
+    public int handle_epsv(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        if (st.hasMoreTokens() && st.nextToken().equalsIgnoreCase("ALL")) {
+            return reply(EPSV_ALL_OK);
+        }
+
+        int port = enterPassiveMode();
+        return reply(229, "Entering Extended Passive Mode (|||" + port + "|).");
+    }
+
+    private int enterPassiveMode() throws CommandException {
+        int port = dtp.enterPassiveMode(getClientAddress());
+        if (port == -1) {
+            throw new CommandException(425, "No passive ports available.");
+        }
+        return port;
     }
 
     public int handle_port(String line, StringTokenizer st) throws CommandException {
@@ -206,31 +561,27 @@ class ServerPI implements Runnable {
 
         dtp.setDataPort(dataHost, dataPort);
 
-        return reply(200, "PORT command successful.");
+        return reply(PORT_OK);
     }
 
     public int handle_cwd(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
         String arg = st.nextToken();
-        String newDir = arg;
-
-        if (newDir.length() == 0) {
-            newDir = "/";
-        }
-
-        newDir = resolvePath(newDir);
-
-        File file = new File(createNativePath(newDir));
+        VirtualPath newDir = (arg.length() == 0) ? VirtualPath.ROOT : resolve(arg);
 
-        if (!file.exists()) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = vfs.attributes(newDir);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": no such directory");
-        } else if (!file.isDirectory()) {
+        }
+        if (!attrs.isDirectory()) {
             throw new CommandException(550, arg + ": not a directory");
         }
 
-        currentDir = newDir;
-        return reply(250, "CWD command successful.");
+        changeDirectory(newDir);
+        return reply(CWD_OK);
     }
 
     public int handle_cdup(String line, StringTokenizer st) throws CommandException {
@@ -241,21 +592,38 @@ class ServerPI implements Runnable {
     public int handle_quit(String line, StringTokenizer st) throws CommandException {
         username = null;
         password = null;
-        return reply(221, "Goodbye.");
+        return reply(GOODBYE);
     }
 
     public int handle_noop(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
-        return reply(200, "NOOP command successful.");
+        return reply(NOOP_OK);
     }
 
-    public int handle_nlst(String line, StringTokenizer st) throws CommandException {
+    public int handle_abor(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
-        String path = (st.hasMoreTokens() ? st.nextToken() : currentDir);
+        dtp.abort();
+        return reply(ABOR_OK);
+    }
+
+    public int handle_stat(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        if (st.hasMoreTokens()) {
+            throw new CommandException(502, "STAT with a path is not implemented.");
+        }
+
+        String transfer = dtp.isTransferring() ? "transfer in progress" : "no transfer in progress";
+        return reply(211, "Logged in as " + username + ", TYPE " + dtp.getRepresentation().getName()
+                + ", " + transfer + ".");
+    }
+
+    public int handle_nlst(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
 
-        path = createNativePath(path);
+        VirtualPath path = (st.hasMoreTokens() ? resolve(st.nextToken()) : currentDir);
 
         return dtp.sendNameList(path);
     }
@@ -264,82 +632,376 @@ class ServerPI implements Runnable {
         checkLogin();
 
         String arg = st.nextToken();
-        String dirPath = resolvePath(arg);
+        VirtualPath dir = resolve(arg);
 
-        File dir = new File(createNativePath(dirPath));
-
-        if (dir.exists()) {
+        if (vfs.exists(dir)) {
             throw new CommandException(550, arg + ": file exists");
         }
-        if (!dir.mkdir()) {
+        try {
+            vfs.createDirectory(dir);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": directory could not be created");
         }
 
-        return reply(257, "\"" + dirPath + "\" directory created");
+        invalidateListing(dir.getParent());
+
+        return reply(257, "\"", dir.toString(), "\" directory created");
     }
 
     public int handle_dele(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
         String arg = st.nextToken();
-        String filePath = resolvePath(arg);
+        VirtualPath path = resolve(arg);
 
-        File file = new File(createNativePath(filePath));
-
-        if (!file.exists()) {
+        if (!vfs.exists(path)) {
             throw new CommandException(550, arg + ": file does not exist");
         }
-        if (!file.delete()) {
+        try {
+            vfs.delete(path);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": could not delete file");
         }
 
-        return reply(250, "DELE command successful.");
+        invalidateListing(path.getParent());
+        File file = vfs.toFile(path);
+        if (file != null)
+            HotFileCache.INSTANCE.invalidate(file);
+
+        return reply(DELE_OK);
     }
 
     public int handle_rmd(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
         String arg = st.nextToken();
-        String dirPath = resolvePath(arg);
+        VirtualPath dir = resolve(arg);
 
-        File dir = new File(createNativePath(dirPath));
-
-        if (!dir.exists()) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = vfs.attributes(dir);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": directory does not exist");
         }
-        if (!dir.isDirectory()) {
+        if (!attrs.isDirectory()) {
             throw new CommandException(550, arg + ": not a directory");
         }
-        if (!dir.delete()) {
+        try {
+            vfs.delete(dir);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": could not remove directory");
         }
 
-        return reply(250, "RMD command successful.");
+        invalidateListing(dir.getParent());
+        invalidateListing(dir);
+
+        return reply(RMD_OK);
     }
 
     public int handle_size(String line, StringTokenizer st) throws CommandException {
         checkLogin();
 
         String arg = st.nextToken();
-        String path = resolvePath(arg);
-        File file = new File(createNativePath(path));
+        VirtualPath path = plainFile(arg);
 
-        if (!file.exists()) {
+        Representation representation = dtp.getRepresentation();
+        long size;
+        try {
+            size = representation.sizeOf(path);
+        } catch (IOException e) {
+            throw new CommandException(550, e.getMessage());
+        }
+
+        return reply(213, Long.toString(size));
+    }
+
+    public int handle_mdtm(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String arg = st.nextToken();
+        BasicFileAttributes attrs;
+        try {
+            attrs = vfs.attributes(resolve(arg));
+        } catch (IOException e) {
+            throw new CommandException(550, arg + ": no such file");
+        }
+
+        return reply(213, ListingWriter.TIME_VAL.format(attrs.lastModifiedTime().toInstant()));
+    }
+
+    public int handle_mlst(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String arg = (st.hasMoreTokens() ? st.nextToken() : currentDir.toString());
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = vfs.attributes(resolve(arg));
+        } catch (IOException e) {
+            throw new CommandException(550, arg + ": no such file or directory");
+        }
+
+        return reply(250, "Listing " + arg, new String[] { ListingWriter.facts(attrs) + " " + arg }, "End");
+    }
+
+    public int handle_mlsd(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        VirtualPath path = (st.hasMoreTokens() ? resolve(st.nextToken()) : currentDir);
+
+        return dtp.sendMachineList(path);
+    }
+
+    /**
+     * HASH path replies with the digest of the file, or of the range set by
+     * the preceding RANG, in the algorithm selected with OPTS HASH.
+     */
+    public int handle_hash(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+        long start = rangeStart;
+        long end = rangeEnd;
+        rangeStart = rangeEnd = -1;
+
+        String arg = st.nextToken();
+        VirtualPath path = plainFile(arg);
+        long length = length(path);
+        if (start < 0) {
+            start = 0;
+            end = length;
+        }
+        String digest = digest(path, length, hashAlgorithm, start, end);
+        return reply(213, hashAlgorithm + " " + range(start, end) + " " + digest + " ", arg, "");
+    }
+
+    /**
+     * Formats the bytes from {@code start} up to {@code end} as the inclusive
+     * range of draft-bryan-ftp-hash; an empty file is the range 0-0.
+     */
+    private static String range(long start, long end) {
+        return start + "-" + ((end > start) ? end - 1 : end);
+    }
+
+    /**
+     * RANG start end limits the next HASH to bytes {@code start} to
+     * {@code end}, inclusive; RANG 1 0 clears the range.
+     */
+    public int handle_rang(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        long start = parseOffset("RANG", st.nextToken());
+        long end = parseOffset("RANG", st.nextToken());
+        if (start == 1 && end == 0) {
+            rangeStart = rangeEnd = -1;
+            return reply(350, "Byte range cleared.");
+        }
+        if (end < start) {
+            throw new CommandException(501, "RANG: invalid byte range " + start + "-" + end);
+        }
+        rangeStart = start;
+        rangeEnd = end + 1;
+        return reply(350, "Restarting at " + start + ". End byte range at " + end + ".");
+    }
+
+    public int handle_xcrc(String line, StringTokenizer st) throws CommandException {
+        return checksum("CRC32", st);
+    }
+
+    public int handle_xmd5(String line, StringTokenizer st) throws CommandException {
+        return checksum("MD5", st);
+    }
+
+    public int handle_xsha1(String line, StringTokenizer st) throws CommandException {
+        return checksum("SHA-1", st);
+    }
+
+    public int handle_xsha256(String line, StringTokenizer st) throws CommandException {
+        return checksum("SHA-256", st);
+    }
+
+    public int handle_xsha512(String line, StringTokenizer st) throws CommandException {
+        return checksum("SHA-512", st);
+    }
+
+    /**
+     * XCRC and the like take a path and optionally a start and an end
+     * offset, exclusive, and reply with just the digest.
+     */
+    private int checksum(String algorithm, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String arg = st.nextToken();
+        VirtualPath path = plainFile(arg);
+        long length = length(path);
+        long start = st.hasMoreTokens() ? parseOffset(algorithm, st.nextToken()) : 0;
+        long end = st.hasMoreTokens() ? parseOffset(algorithm, st.nextToken()) : length;
+        return reply(250, digest(path, length, algorithm, start, end));
+    }
+
+    /**
+     * Resolves {@code arg} and checks that it names a plain file.
+     */
+    private VirtualPath plainFile(String arg) throws CommandException {
+        VirtualPath path = resolve(arg);
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = vfs.attributes(path);
+        } catch (IOException e) {
             throw new CommandException(550, arg + ": no such file");
         }
-        if (!file.isFile()) {
+        if (!attrs.isRegularFile()) {
             throw new CommandException(550, arg + ": not a plain file");
         }
+        return path;
+    }
 
-        Representation representation = dtp.getRepresentation();
-        long size;
+    private long length(VirtualPath path) throws CommandException {
         try {
-            size = representation.sizeOf(file);
+            return vfs.attributes(path).size();
         } catch (IOException e) {
-            throw new CommandException(550, e.getMessage());
+            throw new CommandException(550, "Can't read file");
         }
+    }
 
-        return reply(213, "" + size);
+    private String digest(VirtualPath path, long length, String algorithm, long start, long end)
+            throws CommandException {
+        if (start > end || end > length) {
+            throw new CommandException(501, "Invalid byte range " + range(start, end) + ".");
+        }
+        try {
+            return DigestIndex.INSTANCE.digest(path, algorithm, start, end);
+        } catch (IOException e) {
+            throw new CommandException(550, "Can't read file");
+        }
+    }
+
+    private static long parseOffset(String command, String arg) throws CommandException {
+        long offset;
+        try {
+            offset = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new CommandException(501, command + ": invalid argument '" + arg + "'");
+        }
+        if (offset < 0) {
+            throw new CommandException(501, command + ": invalid argument '" + arg + "'");
+        }
+        return offset;
+    }
+
+    public int handle_feat(String line, StringTokenizer st) throws CommandException {
+        String features[] = FEATURES.clone();
+        for (int i = 0; i < features.length; i++) {
+            if (features[i].equals("HASH"))
+                features[i] = hashFeature();
+        }
+        return reply(211, "Features:", features, "End");
+    }
+
+    /**
+     * Lists the HASH algorithms with the selected one starred.
+     */
+    private String hashFeature() {
+        StringBuilder sb = new StringBuilder("HASH ");
+        for (String algorithm : DigestIndex.ALGORITHMS) {
+            sb.append(algorithm);
+            if (algorithm.equals(hashAlgorithm))
+                sb.append('*');
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    public int handle_site(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String command = st.nextToken().toUpperCase();
+        if (!command.equals("RATE")) {
+            throw new CommandException(504, "SITE " + command + " not implemented.");
+        }
+        return siteRate(st);
+    }
+
+    private static boolean isAdmin(String username, String password) {
+        if (ADMIN == null || ADMIN_PASSWORD == null || !ADMIN.equals(username))
+            return false;
+        return MessageDigest.isEqual(ADMIN_PASSWORD.getBytes(StandardCharsets.UTF_8),
+                password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * SITE RATE shows the bandwidth limits in bytes per second; SITE RATE
+     * [SESSION|USER|GLOBAL] n sets one of them, the session's by default,
+     * and 0 lifts it. Only the admin (-Dftp.admin, -Dftp.admin.password)
+     * may set the USER and GLOBAL rates or raise a session's; any session
+     * may lower its own.
+     */
+    private int siteRate(StringTokenizer st) throws CommandException {
+        TokenBucket session = dtp.getSessionBucket();
+        TokenBucket user = dtp.getUserBucket();
+        TokenBucket global = BandwidthLimiter.INSTANCE.getGlobal();
+
+        if (st.hasMoreTokens()) {
+            String arg = st.nextToken();
+            String scope = arg.toUpperCase();
+            TokenBucket bucket = session;
+            if (scope.equals("SESSION") || scope.equals("USER") || scope.equals("GLOBAL")) {
+                bucket = scope.equals("USER") ? user : scope.equals("GLOBAL") ? global : session;
+                arg = st.nextToken();
+            }
+            long rate;
+            try {
+                rate = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                throw new CommandException(501, "SITE RATE: invalid argument '" + arg + "'");
+            }
+            if (rate < 0) {
+                throw new CommandException(501, "SITE RATE: invalid argument '" + arg + "'");
+            }
+            if (!isAdmin && bucket != session) {
+                throw new CommandException(550, "SITE RATE " + scope + ": permission denied.");
+            }
+            long current = session.getRate();
+            if (!isAdmin && (rate == 0 || (current > 0 && rate > current))) {
+                throw new CommandException(550, "SITE RATE: a session may only lower its own rate.");
+            }
+            bucket.setRate(rate);
+        }
+
+        return reply(200, "Rates: session " + session.getRate() + ", user " + user.getRate()
+                + ", global " + global.getRate() + " bytes/s.");
+    }
+
+    public int handle_allo(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String arg = st.nextToken();
+        long size;
+        try {
+            size = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new CommandException(501, "ALLO: invalid argument '" + arg + "'");
+        }
+
+        dtp.setAllocationSize(size);
+        return reply(ALLO_OK);
+    }
+
+    public int handle_rest(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+
+        String arg = st.nextToken();
+        long offset;
+        try {
+            offset = Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new CommandException(501, "REST: invalid argument '" + arg + "'");
+        }
+        if (offset < 0) {
+            throw new CommandException(501, "REST: invalid argument '" + arg + "'");
+        }
+
+        dtp.setRestartOffset(offset);
+        return reply(350, "Restarting at " + offset + ". Send STORE or RETRIEVE to initiate transfer.");
     }
 
     public int handle_rein(String line, StringTokenizer st) throws CommandException {
@@ -347,9 +1009,15 @@ class ServerPI implements Runnable {
 
         username = null;
         password = null;
-        currentDir = "/";
+        isAdmin = false;
+        changeDirectory(VirtualPath.ROOT);
+        hashAlgorithm = DigestIndex.DEFAULT_ALGORITHM;
+        rangeStart = rangeEnd = -1;
+        // the old data side must not keep a transfer running or a passive port leased
+        dtp.abort();
+        dtp.close();
         dtp = new ServerDTP(this);
-        return reply(220, "Service ready for new user.");
+        return reply(READY);
     }
 
     public int handle_retr(String line, StringTokenizer st) throws CommandException {
@@ -362,9 +1030,7 @@ class ServerPI implements Runnable {
             throw new NoSuchElementException(e.getMessage());
         }
 
-        path = createNativePath(path);
-
-        return dtp.sendFile(path);
+        return dtp.sendFile(resolve(path));
     }
 
     public int handle_stor(String line, StringTokenizer st) throws CommandException {
@@ -377,7 +1043,19 @@ class ServerPI implements Runnable {
             throw new NoSuchElementException(e.getMessage());
         }
 
-        path = createNativePath(path);
-        return dtp.receiveFile(path);
+        return dtp.receiveFile(resolve(path));
+    }
+
+    public int handle_appe(String line, StringTokenizer st) throws CommandException {
+        checkLogin();
+        String path;
+
+        try {
+            path = line.substring(5);
+        } catch (Exception e) {
+            throw new NoSuchElementException(e.getMessage());
+        }
+
+        return dtp.appendFile(resolve(path));
     }
 }
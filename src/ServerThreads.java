@@ -0,0 +1,47 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread model for sessions and data transfers, chosen at startup with
+ * -Dftp.threads=platform|virtual. Virtual threads need a Java 21 runtime
+ * and are looked up reflectively; older runtimes fall back to platform
+ * threads.
+ */
+final class ServerThreads {
+    static final boolean VIRTUAL = "virtual".equals(System.getProperty("ftp.threads", "platform"));
+
+    static final ExecutorService TRANSFERS = newPerTaskExecutor("ftp-transfer");
+
+    private ServerThreads() {
+    }
+
+    /**
+     * Returns an executor that runs every task on a thread of its own, or
+     * on a reused idle one in platform mode.
+     */
+    static ExecutorService newPerTaskExecutor(String name) {
+        if (VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                ServerLog.INSTANCE.warn("Virtual threads are not available, using platform threads for " + name);
+            }
+        }
+        return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, name + "-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * The directory where the server keeps state across restarts, such as the
+ * TYPE A size and digest indexes. -Dftp.state.dir names it (ftp-server-<user>
+ * in the temporary directory); it must lie outside the served tree, which
+ * refuses to reach it if it does not. It is created accessible to the server's user only, and a state file is
+ * read or written only if that user owns it and its directory and no one
+ * else may write to either, so another local user cannot plant entries the
+ * server would trust.
+ */
+class StateDirectory {
+    static final StateDirectory INSTANCE = new StateDirectory(new File(System.getProperty("ftp.state.dir",
+            new File(System.getProperty("java.io.tmpdir"), "ftp-server-" + System.getProperty("user.name")).getPath())));
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private final File dir;
+
+    StateDirectory(File dir) {
+        this.dir = dir;
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns the state file called {@code name}.
+     */
+    File file(String name) {
+        return new File(dir, name);
+    }
+
+    /**
+     * Creates the directory of {@code file} for the server's user only if
+     * it does not exist, and returns whether the file may be used as state.
+     * The reason it may not is logged.
+     */
+    synchronized boolean isSafe(File file) {
+        Path parent = file.getAbsoluteFile().toPath().getParent();
+        try {
+            if (!Files.exists(parent))
+                createPrivate(parent);
+            UserPrincipal user = FileSystems.getDefault().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!isPrivate(parent, user) || (file.exists() && !isPrivate(file.toPath(), user))) {
+                ServerLog.INSTANCE.warn(file + ": not private to " + user.getName() + "; not used");
+                return false;
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            ServerLog.INSTANCE.error(file.toString(), e);
+            return false;
+        }
+    }
+
+    private static void createPrivate(Path dir) throws IOException {
+        if (Files.getFileStore(existingAncestor(dir)).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createDirectories(dir);
+            File file = dir.toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setExecutable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+            file.setExecutable(true, true);
+        }
+    }
+
+    private static Path existingAncestor(Path path) {
+        while (path.getParent() != null && !Files.exists(path))
+            path = path.getParent();
+        return path;
+    }
+
+    private static boolean isPrivate(Path path, UserPrincipal user) throws IOException {
+        if (!Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user))
+            return false;
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null)
+            return true;
+        PosixFileAttributes attrs = view.readAttributes();
+        if (attrs.isSymbolicLink())
+            return false;
+        Set<PosixFilePermission> permissions = attrs.permissions();
+        return !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    }
+}
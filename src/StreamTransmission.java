@@ -4,33 +4,46 @@ import java.io.OutputStream;
 import java.net.Socket;
 
 class StreamTransmission {
-    private static final int BUF_SIZE = 1024;
-    private boolean isAborted = false;
+    private static final int BUF_SIZE = AsciiCodec.BLOCK_SIZE;
+    private volatile boolean isAborted = false;
 
     void abort() {
         isAborted = true;
     }
 
-    void sendFile(InputStream in, Socket s, Representation representation) throws IOException {
+    void sendFile(InputStream in, Socket s, Representation representation, BandwidthLimiter.Shaper shaper)
+            throws IOException {
+        sendFile(in, s, representation, false, shaper);
+    }
+
+    /**
+     * Sends {@code in}, which starts after a CR in the file if
+     * {@code afterCr}.
+     */
+    void sendFile(InputStream in, Socket s, Representation representation, boolean afterCr,
+                  BandwidthLimiter.Shaper shaper) throws IOException {
         isAborted = false;
 
-        OutputStream out = representation.getOutputStream(s);
+        OutputStream out = representation.getOutputStream(s.getOutputStream(), afterCr);
         byte buf[] = new byte[BUF_SIZE];
         int nread;
-        while (((nread = in.read(buf)) > 0) && !isAborted) {
+        while (((nread = in.read(buf, 0, (int) shaper.quantum(BUF_SIZE))) > 0) && !isAborted) {
             out.write(buf, 0, nread);
+            shaper.account(nread);
         }
         out.close();
     }
 
-    void receiveFile(Socket s, OutputStream out, Representation representation) throws IOException {
+    void receiveFile(Socket s, OutputStream out, Representation representation, BandwidthLimiter.Shaper shaper)
+            throws IOException {
         isAborted = false;
 
-        InputStream in = representation.getInputStream(s);
+        InputStream in = representation.getInputStream(s.getInputStream());
         byte buf[] = new byte[BUF_SIZE];
         int nread;
-        while (((nread = in.read(buf, 0, BUF_SIZE)) > 0) && !isAborted) {
+        while (((nread = in.read(buf, 0, (int) shaper.quantum(BUF_SIZE))) > 0) && !isAborted) {
             out.write(buf, 0, nread);
+            shaper.account(nread);
         }
         in.close();
     }
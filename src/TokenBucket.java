@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket holding up to one second of traffic at its rate.
+ * Callers reserve tokens up front and may drive the bucket into debt; the
+ * reservation tells them how long to wait before the bytes are due, so
+ * concurrent transfers queue up behind each other without any lock. The
+ * rate can be changed at any time and a rate of zero means unlimited.
+ */
+final class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // enough to repay any debt, small enough not to overflow
+    private static final long MAX_REFILL_INTERVAL = 60 * NANOS_PER_SECOND;
+
+    private volatile long rate;
+    private final AtomicLong tokens;
+    private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+
+    TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokens = new AtomicLong(rate);
+    }
+
+    long getRate() {
+        return rate;
+    }
+
+    void setRate(long rate) {
+        this.rate = rate;
+        // drop any burst or debt accrued at the old rate
+        tokens.set(Math.min(tokens.get(), rate));
+        if (tokens.get() < -rate)
+            tokens.set(-rate);
+    }
+
+    /**
+     * Takes {@code count} tokens and returns how many nanoseconds the caller
+     * must wait before sending them.
+     */
+    long reserve(long count) {
+        long rate = this.rate;
+        if (rate <= 0)
+            return 0;
+
+        refill(rate);
+        long left = tokens.addAndGet(-count);
+        return left >= 0 ? 0 : (long) (-left * (double) NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(long rate) {
+        long now = System.nanoTime();
+        long last = lastRefill.get();
+        long elapsed = Math.min(now - last, MAX_REFILL_INTERVAL);
+        if (elapsed <= 0 || !lastRefill.compareAndSet(last, now))
+            return;
+
+        long added = (long) (elapsed * (double) rate / NANOS_PER_SECOND);
+        tokens.accumulateAndGet(added, (t, a) -> Math.min(t + a, rate));
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The tree of files the server serves, addressed by {@link VirtualPath}.
+ * Sessions reach files only through here, so the tree can live on disk or
+ * in memory. Chosen at startup with -Dftp.vfs: "native" serves the
+ * directory -Dftp.root (the user's home), "memory" serves a tree held in
+ * the heap, optionally copied from the directory -Dftp.vfs.seed at startup.
+ *
+ * <p>The native backend also exposes the {@link File} behind a path, which
+ * turns on the accelerations that only make sense for disk files: sendfile
+ * through the handle cache, the hot-file cache and the watched listing
+ * cache.
+ */
+abstract class VirtualFileSystem {
+    static final VirtualFileSystem INSTANCE = create(System.getProperty("ftp.vfs", "native"));
+
+    private static VirtualFileSystem create(String kind) {
+        if (kind.equals("memory")) {
+            MemoryFileSystem memory = new MemoryFileSystem();
+            String seed = System.getProperty("ftp.vfs.seed");
+            if (seed != null) {
+                try {
+                    memory.copyFrom(new File(seed));
+                } catch (IOException e) {
+                    ServerLog.INSTANCE.error(e);
+                }
+            }
+            return memory;
+        }
+        return new NativeFileSystem(new File(System.getProperty("ftp.root", System.getProperty("user.home"))));
+    }
+
+    /**
+     * Returns the attributes of {@code path}, or throws
+     * {@link NoSuchFileException} if there is nothing there.
+     */
+    abstract BasicFileAttributes attributes(VirtualPath path) throws IOException;
+
+    /**
+     * Returns the entries of directory {@code dir} that {@code filter} accepts.
+     */
+    abstract DirectoryStream<VirtualPath> newDirectoryStream(VirtualPath dir,
+            DirectoryStream.Filter<? super VirtualPath> filter) throws IOException;
+
+    abstract void createDirectory(VirtualPath dir) throws IOException;
+
+    /**
+     * Deletes a file or an empty directory.
+     */
+    abstract void delete(VirtualPath path) throws IOException;
+
+    /**
+     * Opens {@code path} with the options of {@link FileChannel#open}.
+     */
+    abstract FileChannel open(VirtualPath path, OpenOption... options) throws IOException;
+
+    /**
+     * Renames {@code source} to {@code target} in one step. Throws
+     * FileAlreadyExistsException, leaving both alone, if {@code target}
+     * exists.
+     */
+    abstract void move(VirtualPath source, VirtualPath target) throws IOException;
+
+    /**
+     * Makes the entries of directory {@code dir} durable.
+     */
+    abstract void forceDirectory(VirtualPath dir) throws IOException;
+
+    /**
+     * Returns {@code size} bytes of file {@code path} from {@code position}
+     * on as a read-only buffer, without copying them where possible.
+     */
+    abstract ByteBuffer map(VirtualPath path, long position, long size) throws IOException;
+
+    /**
+     * Returns a key for {@code path} that stays the same for the same file,
+     * for caches that outlive a session.
+     */
+    abstract String key(VirtualPath path) throws IOException;
+
+    /**
+     * Returns the disk file behind {@code path}, or null if the tree is not
+     * on disk.
+     */
+    File toFile(VirtualPath path) {
+        return null;
+    }
+
+    final boolean exists(VirtualPath path) {
+        try {
+            attributes(path);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    final boolean isDirectory(VirtualPath path) {
+        try {
+            return attributes(path).isDirectory();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    final boolean isFile(VirtualPath path) {
+        try {
+            return attributes(path).isRegularFile();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A directory stream over {@code entries} that skips what {@code filter}
+     * rejects and runs {@code onClose} when closed.
+     */
+    static DirectoryStream<VirtualPath> newDirectoryStream(Iterator<VirtualPath> entries,
+            DirectoryStream.Filter<? super VirtualPath> filter, Closeable onClose) {
+        return new DirectoryStream<VirtualPath>() {
+            private boolean isIterated = false;
+
+            public Iterator<VirtualPath> iterator() {
+                if (isIterated)
+                    throw new IllegalStateException("Directory stream already iterated");
+                isIterated = true;
+                return new Iterator<VirtualPath>() {
+                    private VirtualPath next;
+
+                    public boolean hasNext() {
+                        while (next == null && entries.hasNext()) {
+                            VirtualPath entry = entries.next();
+                            try {
+                                if (filter.accept(entry))
+                                    next = entry;
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    public VirtualPath next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        VirtualPath entry = next;
+                        next = null;
+                        return entry;
+                    }
+                };
+            }
+
+            public void close() throws IOException {
+                if (onClose != null)
+                    onClose.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,161 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A normalized absolute path in the served tree, such as {@code /pub/a.txt}.
+ * Paths are interned: every path knows its parent and keeps the children
+ * resolved through it, so resolving a known path walks a tree of existing
+ * objects and allocates nothing but the segment strings. Interned paths
+ * also carry their backend's form of the path once it has been computed.
+ *
+ * <p>A parent holds its children weakly: a path stays interned while a
+ * session, a cache or one of its descendants refers to it, and is dropped
+ * once nothing does, so paths clients make up cannot pile up.
+ */
+final class VirtualPath {
+    private static final ReferenceQueue<VirtualPath> cleared = new ReferenceQueue<>();
+
+    static final VirtualPath ROOT = new VirtualPath(null, "");
+
+    private final VirtualPath parent;
+    private final String name;
+    private final String path;
+    private volatile ConcurrentHashMap<String, ChildRef> children;
+
+    // the backend's form of this path, such as the native File; set by the backend
+    volatile Object resolved;
+
+    /**
+     * An interned child in its parent's table, removed from the table once
+     * the child has been collected.
+     */
+    private static final class ChildRef extends WeakReference<VirtualPath> {
+        final ConcurrentHashMap<String, ChildRef> siblings;
+        final String name;
+
+        ChildRef(VirtualPath child, ConcurrentHashMap<String, ChildRef> siblings) {
+            super(child, cleared);
+            this.siblings = siblings;
+            this.name = child.name;
+        }
+    }
+
+    private VirtualPath(VirtualPath parent, String name) {
+        this.parent = parent;
+        this.name = name;
+        this.path = (parent == null) ? "/" : (parent.parent == null) ? "/" + name : parent.path + "/" + name;
+    }
+
+    /**
+     * Returns the path {@code arg} names relative to this one: an absolute
+     * argument starts at the root, "." is skipped, ".." goes up but never
+     * above the root, and empty segments are ignored.
+     */
+    VirtualPath resolve(String arg) {
+        VirtualPath path = (arg.length() > 0 && arg.charAt(0) == '/') ? ROOT : this;
+        int length = arg.length();
+        int start = 0;
+        while (start < length) {
+            int end = arg.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            int n = end - start;
+            if (n == 2 && arg.charAt(start) == '.' && arg.charAt(start + 1) == '.')
+                path = path.getParent();
+            else if (n > 0 && !(n == 1 && arg.charAt(start) == '.'))
+                path = path.child(arg.substring(start, end));
+            start = end + 1;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the interned child called {@code name}.
+     */
+    VirtualPath child(String name) {
+        ConcurrentHashMap<String, ChildRef> children = this.children;
+        VirtualPath child = lookup(children, name);
+        if (child != null)
+            return child;
+
+        expunge();
+        if (children == null) {
+            synchronized (this) {
+                if (this.children == null)
+                    this.children = new ConcurrentHashMap<>();
+                children = this.children;
+            }
+        }
+        child = new VirtualPath(this, name);
+        ChildRef ref = new ChildRef(child, children);
+        while (true) {
+            ChildRef old = children.putIfAbsent(name, ref);
+            if (old == null)
+                return child;
+            VirtualPath existing = old.get();
+            if (existing != null)
+                return existing;
+            if (children.replace(name, old, ref))
+                return child;
+        }
+    }
+
+    /**
+     * Returns a child that is not interned, for names that are seen once,
+     * such as directory entries and staging files.
+     */
+    VirtualPath entry(String name) {
+        VirtualPath child = lookup(children, name);
+        return (child != null) ? child : new VirtualPath(this, name);
+    }
+
+    private static VirtualPath lookup(ConcurrentHashMap<String, ChildRef> children, String name) {
+        if (children == null)
+            return null;
+        ChildRef ref = children.get(name);
+        return (ref != null) ? ref.get() : null;
+    }
+
+    /**
+     * Drops the table entries of children that have been collected.
+     */
+    private static void expunge() {
+        Reference<? extends VirtualPath> ref;
+        while ((ref = cleared.poll()) != null) {
+            ChildRef child = (ChildRef) ref;
+            child.siblings.remove(child.name, child);
+        }
+    }
+
+    /**
+     * Returns the parent, or the root itself for the root.
+     */
+    VirtualPath getParent() {
+        return (parent != null) ? parent : this;
+    }
+
+    boolean isRoot() {
+        return parent == null;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || (o instanceof VirtualPath && path.equals(((VirtualPath) o).path));
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}